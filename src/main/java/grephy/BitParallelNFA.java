@@ -0,0 +1,224 @@
+package grephy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * BitParallelNFA.java - Simulates a small epsilon-free NFA with its set of active states packed into the bits of a
+ * long, so no determinization is needed and every byte costs the same handful of operations.
+ *
+ * The NFA is first put in Glushkov form, where every state is entered on the same set of bytes whichever state it is
+ * entered from (a state entered on different sets is split into one copy per set). A step is then
+ *   next = follow(active) & masks[byte]
+ * where follow(active) is the set of states reachable from any active state, looked up 8 states at a time in
+ * precomputed tables. When each state is only followed by the next one, as for a plain string, follow(active) is just
+ * active << 1 (Shift-And).
+ */
+public class BitParallelNFA implements LineAutomaton {
+    public static final int MAX_STATES = Long.SIZE; // Most states that fit in the bitmask
+
+    private static final int SYMBOLS = SymbolRange.MAX_SYMBOL + 1; // Number of distinct bytes
+    private static final int CHUNK_BITS = 8; // States looked up at once in the follow tables
+    private static final int CHUNK_VALUES = 1 << CHUNK_BITS;
+
+    private final int numStates;
+    private final long[] masks = new long[SYMBOLS]; // States entered on each byte
+    private final long acceptMask; // Accepting states
+    private final boolean shift; // Is each state followed by the next state only?
+    // States reachable from the states in chunk k: follow[k * CHUNK_VALUES + ((active >>> k * CHUNK_BITS) & 0xff)]
+    private final long[] follow;
+
+    /**
+     * @param numStates Number of states (at most MAX_STATES)
+     * @param labels Bytes that each state is entered on (unused for the initial state)
+     * @param followers States that can be entered from each state
+     * @param acceptMask Accepting states
+     */
+    private BitParallelNFA(int numStates, List<BitSet> labels, long[] followers, long acceptMask) {
+        this.numStates = numStates;
+        this.acceptMask = acceptMask;
+
+        for (int s = 1; s < numStates; s++) {
+            for (int b = labels.get(s).nextSetBit(0); b >= 0; b = labels.get(s).nextSetBit(b + 1)) {
+                masks[b] |= 1L << s;
+            }
+        }
+
+        boolean linear = true;
+        for (int s = 0; s < numStates && linear; s++) {
+            linear = followers[s] == (s + 1 < numStates ? 1L << s + 1 : 0);
+        }
+        shift = linear;
+
+        // Each table entry is an entry with one bit fewer, plus the followers of that bit's state
+        int numChunks = (numStates + CHUNK_BITS - 1) / CHUNK_BITS;
+        follow = new long[numChunks * CHUNK_VALUES];
+        for (int k = 0; k < numChunks; k++) {
+            for (int v = 1; v < CHUNK_VALUES; v++) {
+                int state = k * CHUNK_BITS + Integer.numberOfTrailingZeros(v);
+                long stateFollowers = state < numStates ? followers[state] : 0;
+                follow[k * CHUNK_VALUES + v] = follow[k * CHUNK_VALUES + (v & v - 1)] | stateFollowers;
+            }
+        }
+    }
+
+    /**
+     * Builds the bit-parallel form of an NFA, if it is small enough. States that are unreachable or can't lead to an
+     * accepting state are left out.
+     *
+     * @param nfa Epsilon-free NFA
+     * @return The bit-parallel NFA, or null if it would need more than MAX_STATES states
+     */
+    public static BitParallelNFA fromNFA(NFA nfa) {
+        Map<Integer, List<Transition>> outgoing = NFA.groupByStateFrom(nfa.delta);
+        Set<Integer> useful = usefulStates(nfa, outgoing);
+
+        // Bytes leading from one useful state to another: labels.get(from).get(to)
+        Map<Integer, Map<Integer, BitSet>> labels = new HashMap();
+        for (Transition t : nfa.delta) {
+            if (useful.contains(t.stateFrom) && useful.contains(t.stateTo)) {
+                BitSet bytes = labels.computeIfAbsent(t.stateFrom, k -> new HashMap<Integer, BitSet>())
+                        .computeIfAbsent(t.stateTo, k -> new BitSet(SYMBOLS));
+                bytes.set(t.symbol.get().low, t.symbol.get().high + 1);
+            }
+        }
+
+        // Number the Glushkov states breadth-first from the initial state, so a plain string is numbered in order
+        List<Integer> nfaStates = new ArrayList(); // NFA state that each Glushkov state is a copy of
+        List<BitSet> entryLabels = new ArrayList(); // Bytes that each Glushkov state is entered on
+        Map<Integer, Map<BitSet, Integer>> copies = new HashMap(); // Glushkov state by NFA state and entry bytes
+        nfaStates.add(0);
+        entryLabels.add(null);
+        for (int s = 0; s < nfaStates.size(); s++) {
+            if (nfaStates.size() > MAX_STATES) {
+                return null;
+            }
+            Map<Integer, BitSet> targets = labels.getOrDefault(nfaStates.get(s), Collections.emptyMap());
+            for (Integer to : new TreeSet<Integer>(targets.keySet())) {
+                Map<BitSet, Integer> byLabel = copies.computeIfAbsent(to, k -> new HashMap());
+                if (!byLabel.containsKey(targets.get(to))) {
+                    byLabel.put(targets.get(to), nfaStates.size());
+                    nfaStates.add(to);
+                    entryLabels.add(targets.get(to));
+                }
+            }
+        }
+        if (nfaStates.size() > MAX_STATES) {
+            return null;
+        }
+
+        // A copy of a state follows a copy of another if the NFA moves between them on exactly the copy's bytes
+        long[] followers = new long[nfaStates.size()];
+        long acceptMask = 0;
+        for (int s = 0; s < nfaStates.size(); s++) {
+            Map<Integer, BitSet> targets = labels.getOrDefault(nfaStates.get(s), Collections.emptyMap());
+            for (Map.Entry<Integer, BitSet> target : targets.entrySet()) {
+                followers[s] |= 1L << copies.get(target.getKey()).get(target.getValue());
+            }
+            if (nfa.acceptingStates.contains(nfaStates.get(s))) {
+                acceptMask |= 1L << s;
+            }
+        }
+
+        return new BitParallelNFA(nfaStates.size(), entryLabels, followers, acceptMask);
+    }
+
+    /**
+     * Finds the states that are reachable from the initial state and can reach an accepting state.
+     *
+     * @param nfa Epsilon-free NFA
+     * @param outgoing Transitions of the NFA grouped by the state they come from
+     * @return The useful states
+     */
+    private static Set<Integer> usefulStates(NFA nfa, Map<Integer, List<Transition>> outgoing) {
+        Set<Integer> reachable = new HashSet();
+        Deque<Integer> toExplore = new ArrayDeque();
+        reachable.add(0);
+        toExplore.push(0);
+        while (!toExplore.isEmpty()) {
+            for (Transition t : outgoing.getOrDefault(toExplore.pop(), Collections.emptyList())) {
+                if (reachable.add(t.stateTo)) {
+                    toExplore.push(t.stateTo);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> incoming = new HashMap();
+        for (Transition t : nfa.delta) {
+            incoming.computeIfAbsent(t.stateTo, k -> new ArrayList()).add(t.stateFrom);
+        }
+        Set<Integer> useful = new HashSet();
+        for (Integer state : nfa.acceptingStates) {
+            if (reachable.contains(state) && useful.add(state)) {
+                toExplore.push(state);
+            }
+        }
+        while (!toExplore.isEmpty()) {
+            for (Integer from : incoming.getOrDefault(toExplore.pop(), Collections.emptyList())) {
+                if (reachable.contains(from) && useful.add(from)) {
+                    toExplore.push(from);
+                }
+            }
+        }
+
+        useful.add(0); // Kept even if nothing can be accepted, so there is always an initial state
+        return useful;
+    }
+
+    /**
+     * @return Number of states, i.e. bits of the state mask in use
+     */
+    public int getNumStates() {
+        return numStates;
+    }
+
+    @Override
+    public long initialState() {
+        return 1L;
+    }
+
+    @Override
+    public long step(long state, int symbol) {
+        if (shift) {
+            return state << 1 & masks[symbol];
+        }
+        long next = 0;
+        for (int k = 0; state != 0; k += CHUNK_VALUES, state >>>= CHUNK_BITS) {
+            next |= follow[k + (int) (state & CHUNK_VALUES - 1)];
+        }
+        return next & masks[symbol];
+    }
+
+    @Override
+    public boolean isAccepting(long state) {
+        return (state & acceptMask) != 0;
+    }
+
+    @Override
+    public boolean isDead(long state) {
+        return state == 0;
+    }
+
+    /**
+     * Determines if a range of bytes is accepted, stopping early once no states are active.
+     *
+     * @param input Buffer holding the input
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @return true if accepted, false if rejected
+     */
+    public boolean accepts(byte[] input, int from, int to) {
+        return isAccepting(run(initialState(), input, from, to));
+    }
+
+    /**
+     * Determines if a string is accepted, reading its UTF-8 encoding.
+     *
+     * @param inputStr String to be processed
+     * @return true if accepted, false if rejected
+     */
+    public boolean accepts(String inputStr) {
+        byte[] input = inputStr.getBytes(StandardCharsets.UTF_8);
+        return accepts(input, 0, input.length);
+    }
+}
@@ -0,0 +1,555 @@
+package grephy;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CompiledDFA.java - A minimized DFA turned into JVM bytecode, so matching runs as straight-line code instead of a loop
+ * over the transition table. Each state becomes a block of code that reads a byte and switches on it, jumping straight
+ * to the block of the next state, so the current state is just the position in the code. A state that every byte
+ * leads back to, such as the dead state, returns as soon as it is entered. HotSpot can then compile the whole
+ * automaton like a hand-written matcher, with no table loads or bounds checks on it.
+ *
+ * The class is written out by hand as a class file and loaded by a class loader of its own, so it is unloaded along
+ * with the matcher. The class file version is from before stack map frames were required, so the code doesn't need
+ * any.
+ */
+public abstract class CompiledDFA implements LineAutomaton {
+    // HotSpot doesn't JIT compile methods with more bytecode than this (-XX:HugeMethodLimit), and the table is faster
+    // than interpreted code, so larger DFAs aren't compiled
+    public static final int MAX_CODE_SIZE = 8000;
+
+    private static final int SYMBOLS = SymbolRange.MAX_SYMBOL + 1; // Number of distinct bytes
+    private static final String CLASS_NAME = "grephy/GeneratedDFA";
+    private static final String SUPERCLASS_NAME = "grephy/CompiledDFA";
+    private static final int CLASS_VERSION = 49; // Java 5, the last version without StackMapTable attributes
+
+    // Constant pool of the generated class
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int THIS_CLASS = 2; // Index of the entry for the generated class
+    private static final int SUPERCLASS = 4;
+    private static final int INIT_NAME = 5;
+    private static final int INIT_TYPE = 6;
+    private static final int SUPER_INIT_NAME_AND_TYPE = 7;
+    private static final int SUPER_INIT = 8;
+    private static final int CODE_ATTRIBUTE = 9;
+    private static final int ADVANCE_NAME = 10;
+    private static final int ADVANCE_TYPE = 11;
+
+    // Opcodes used by the generated code
+    private static final int ICONST_0 = 0x03; // ICONST_0 + n pushes n, for n from -1 to 5
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ILOAD = 0x15;
+    private static final int ILOAD_1 = 0x1b;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int ISTORE = 0x36;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int BALOAD = 0x33;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int GOTO = 0xa7;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    // Local variables of the generated advance method
+    private static final int POSITION = 3; // from, advanced as bytes are read
+    private static final int TO = 4;
+    private static final int BYTE = 5; // Byte that was read, when it is compared against ranges
+
+    private DFA dfa; // DFA the code was generated from, which single steps still go through
+
+    /**
+     * Runs the automaton over a range of bytes, returning early once a state that can't be left is reached.
+     * Implemented by the generated class.
+     *
+     * @param state State before the first byte
+     * @param input Buffer holding the input
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @return State after the bytes, or a state that can't be left
+     */
+    protected abstract int advance(int state, byte[] input, int from, int to);
+
+    /**
+     * Generates and loads the compiled form of a DFA, if its code is small enough to be JIT compiled.
+     *
+     * @param dfa Minimized DFA
+     * @return The compiled DFA, or null if its code would be larger than MAX_CODE_SIZE
+     */
+    public static CompiledDFA compile(DFA dfa) {
+        byte[] code = generateAdvance(dfa, false);
+        if (code == null) {
+            code = generateAdvance(dfa, true);
+        }
+        if (code == null) {
+            return null;
+        }
+
+        byte[] classFile = generateClass(code);
+        try {
+            CompiledDFA compiled = (CompiledDFA) new Loader().define(classFile).newInstance();
+            compiled.dfa = dfa;
+            return compiled;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to load generated matcher", e);
+        }
+    }
+
+    /**
+     * Generates the bytecode of the advance method. It starts with a switch on the state argument that jumps to the
+     * state's block; each block then returns the state if there are no bytes left, and otherwise reads a byte and
+     * jumps to the next state's block. Jump offsets depend on where each block ends up, so the code is generated
+     * twice: the first pass finds the offsets, which don't depend on the jumps, and the second one fills them in.
+     *
+     * @param dfa Minimized DFA
+     * @param compact true to branch on bytes in the fewest bytes of code, rather than with switches where possible
+     * @return The bytecode, or null if it would be larger than MAX_CODE_SIZE
+     */
+    private static byte[] generateAdvance(DFA dfa, boolean compact) {
+        int numStates = dfa.states.size();
+        if (numStates > MAX_CODE_SIZE) { // Every state needs at least a byte of code
+            return null;
+        }
+
+        int[] blocks = new int[numStates + 1]; // Offset of each state's block, then of a block returning the argument
+        Code code = null;
+        for (int pass = 0; pass < 2; pass++) {
+            code = new Code();
+
+            // Jump to the block of the state the input starts in
+            code.u1(ILOAD_1);
+            code.tableSwitch(0, numStates - 1, blocks, blocks[numStates]);
+
+            for (int s = 0; s < numStates; s++) {
+                blocks[s] = code.size();
+                int[] targets = new int[SYMBOLS];
+                for (int b = 0; b < SYMBOLS; b++) {
+                    targets[b] = (int) dfa.step(s, b);
+                }
+                int common = mostCommon(targets);
+
+                if (common == s && isConstant(targets)) {
+                    // Nothing can change the state, so there is no need to read the rest of the input
+                    code.pushInt(s);
+                    code.u1(IRETURN);
+                    continue;
+                }
+
+                // Return the state at the end of the input
+                code.u1(ILOAD_3);
+                code.u1(ILOAD);
+                code.u1(TO);
+                code.u1(IF_ICMPLT);
+                code.u2(3 + Code.pushSize(s) + 1); // Jump past the return
+                code.pushInt(s);
+                code.u1(IRETURN);
+
+                if (isConstant(targets)) { // The byte doesn't matter, so it isn't read
+                    code.iinc(POSITION, 1);
+                    code.jump(GOTO, blocks[common]);
+                    continue;
+                }
+
+                // Branch on the (signed) byte that was read
+                code.u1(ALOAD_2);
+                code.u1(ILOAD_3);
+                code.u1(BALOAD);
+                code.iinc(POSITION, 1);
+                code.byteSwitch(targets, common, blocks, compact);
+            }
+
+            blocks[numStates] = code.size();
+            code.u1(ILOAD_1);
+            code.u1(IRETURN);
+
+            if (code.size() > MAX_CODE_SIZE) {
+                return null;
+            }
+        }
+        return code.toByteArray();
+    }
+
+    /**
+     * @param targets State reached on each byte
+     * @return The state reached on the most bytes
+     */
+    private static int mostCommon(int[] targets) {
+        int[] sorted = targets.clone();
+        Arrays.sort(sorted);
+        int best = sorted[0];
+        int bestCount = 0;
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            count = i > 0 && sorted[i] == sorted[i - 1] ? count + 1 : 1;
+            if (count > bestCount) {
+                best = sorted[i];
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param targets State reached on each byte
+     * @return true if every byte leads to the same state
+     */
+    private static boolean isConstant(int[] targets) {
+        for (int target : targets) {
+            if (target != targets[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes out a class file for a subclass of CompiledDFA with a no-argument constructor and the given code for
+     * advance.
+     *
+     * @param advance Bytecode of the advance method
+     * @return The class file
+     */
+    private static byte[] generateClass(byte[] advance) {
+        Code classFile = new Code();
+        classFile.u4(0xCAFEBABE);
+        classFile.u2(0); // Minor version
+        classFile.u2(CLASS_VERSION);
+
+        classFile.u2(12); // One more than the number of constants
+        classFile.utf8(CLASS_NAME); // 1
+        classFile.u1(CONSTANT_CLASS); // 2
+        classFile.u2(THIS_CLASS - 1);
+        classFile.utf8(SUPERCLASS_NAME); // 3
+        classFile.u1(CONSTANT_CLASS); // 4
+        classFile.u2(SUPERCLASS - 1);
+        classFile.utf8("<init>"); // 5
+        classFile.utf8("()V"); // 6
+        classFile.u1(CONSTANT_NAME_AND_TYPE); // 7
+        classFile.u2(INIT_NAME);
+        classFile.u2(INIT_TYPE);
+        classFile.u1(CONSTANT_METHODREF); // 8
+        classFile.u2(SUPERCLASS);
+        classFile.u2(SUPER_INIT_NAME_AND_TYPE);
+        classFile.utf8("Code"); // 9
+        classFile.utf8("advance"); // 10
+        classFile.utf8("(I[BII)I"); // 11
+
+        classFile.u2(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        classFile.u2(THIS_CLASS);
+        classFile.u2(SUPERCLASS);
+        classFile.u2(0); // Interfaces
+        classFile.u2(0); // Fields
+        classFile.u2(2); // Methods
+
+        // public GeneratedDFA() { super(); }
+        byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, 0, SUPER_INIT, (byte) RETURN};
+        classFile.u2(0x0001); // ACC_PUBLIC
+        classFile.u2(INIT_NAME);
+        classFile.u2(INIT_TYPE);
+        classFile.method(init, 1, 1);
+
+        // public final int advance(int state, byte[] input, int from, int to)
+        classFile.u2(0x0011); // ACC_PUBLIC | ACC_FINAL
+        classFile.u2(ADVANCE_NAME);
+        classFile.u2(ADVANCE_TYPE);
+        classFile.method(advance, 2, 6);
+
+        classFile.u2(0); // Attributes
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Bytes of a class file or of a method's code, written in the class file's big-endian format.
+     */
+    private static class Code extends ByteArrayOutputStream {
+
+        void u1(int value) {
+            write(value);
+        }
+
+        void u2(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void utf8(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8); // Same as modified UTF-8 for these names
+            u1(CONSTANT_UTF8);
+            u2(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes the attributes of a method, which consist of its Code attribute.
+         *
+         * @param code Bytecode
+         * @param maxStack Deepest the operand stack gets
+         * @param maxLocals Number of local variables, including this and the arguments
+         */
+        void method(byte[] code, int maxStack, int maxLocals) {
+            u2(1); // Attributes
+            u2(CODE_ATTRIBUTE);
+            u4(12 + code.length); // Length of the rest of the attribute
+            u2(maxStack);
+            u2(maxLocals);
+            u4(code.length);
+            write(code, 0, code.length);
+            u2(0); // Exception table
+            u2(0); // Attributes
+        }
+
+        /**
+         * @param value Int constant from -2^15 to 2^15 - 1
+         * @return Bytes needed to push it
+         */
+        static int pushSize(int value) {
+            return value >= -1 && value <= 5 ? 1 : value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ? 2 : 3;
+        }
+
+        /**
+         * Pushes a constant that fits in a short, i.e. a state number or a byte.
+         *
+         * @param value Int constant from -2^15 to 2^15 - 1
+         */
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else {
+                u1(SIPUSH);
+                u2(value);
+            }
+        }
+
+        void iinc(int local, int increment) {
+            u1(IINC);
+            u1(local);
+            u1(increment);
+        }
+
+        /**
+         * Writes a jump instruction with a 16-bit offset.
+         *
+         * @param opcode Jump opcode
+         * @param target Offset of the code to jump to
+         */
+        void jump(int opcode, int target) {
+            int at = size();
+            u1(opcode);
+            u2(target - at);
+        }
+
+        /**
+         * Writes a tableswitch instruction, padded so that its operands are 4-byte aligned.
+         *
+         * @param low Lowest key
+         * @param high Highest key
+         * @param targets Offset of the code to jump to for each key from low to high
+         * @param defaultTarget Offset of the code to jump to for other keys
+         */
+        void tableSwitch(int low, int high, int[] targets, int defaultTarget) {
+            int at = size();
+            u1(TABLESWITCH);
+            pad();
+            u4(defaultTarget - at);
+            u4(low);
+            u4(high);
+            for (int key = low; key <= high; key++) {
+                u4(targets[key - low] - at);
+            }
+        }
+
+        /**
+         * Writes a branch on the signed byte on top of the stack to the block of the state it leads to. This is the
+         * smaller of a tableswitch and a lookupswitch, which HotSpot turns into a jump table or a search of its own.
+         * States usually have only a few ranges of bytes leading to the same state (the bytes of a class or of UTF-8
+         * sequences), but a switch needs a key for every byte of them, so for compact code a binary search over the
+         * ranges is written instead when it is smaller. It takes a few more comparisons per byte.
+         *
+         * @param targets State reached on each (unsigned) byte
+         * @param common State that most bytes lead to
+         * @param blocks Offset of each state's block
+         * @param compact true to write a binary search if it is smaller than a switch
+         */
+        void byteSwitch(int[] targets, int common, int[] blocks, boolean compact) {
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            int numKeys = 0;
+            int numRanges = 0;
+            int[] rangeLows = new int[SYMBOLS]; // First byte of each range of bytes leading to the same state
+            int[] rangeTargets = new int[SYMBOLS];
+            for (int key = Byte.MIN_VALUE; key <= Byte.MAX_VALUE; key++) {
+                if (targets[key & 0xff] != common) {
+                    low = Math.min(low, key);
+                    high = key;
+                    numKeys++;
+                }
+                if (key == Byte.MIN_VALUE || targets[key & 0xff] != targets[(key - 1) & 0xff]) {
+                    rangeLows[numRanges] = key;
+                    rangeTargets[numRanges++] = targets[key & 0xff];
+                }
+            }
+
+            int padding = (4 - (size() + 1) % 4) % 4;
+            int tableSwitchSize = 1 + padding + 12 + 4 * (high - low + 1);
+            int lookupSwitchSize = 1 + padding + 8 + 8 * numKeys;
+            int searchSize = 2 + searchSize(rangeLows, 0, numRanges - 1);
+
+            if (compact && searchSize < Math.min(tableSwitchSize, lookupSwitchSize)) {
+                u1(ISTORE);
+                u1(BYTE);
+                search(rangeLows, rangeTargets, 0, numRanges - 1, blocks);
+            } else if (tableSwitchSize <= lookupSwitchSize) {
+                int[] offsets = new int[high - low + 1];
+                for (int key = low; key <= high; key++) {
+                    offsets[key - low] = blocks[targets[key & 0xff]];
+                }
+                tableSwitch(low, high, offsets, blocks[common]);
+            } else {
+                int at = size();
+                u1(LOOKUPSWITCH);
+                pad();
+                u4(blocks[common] - at);
+                u4(numKeys);
+                for (int key = Byte.MIN_VALUE; key <= Byte.MAX_VALUE; key++) {
+                    if (targets[key & 0xff] != common) {
+                        u4(key);
+                        u4(blocks[targets[key & 0xff]] - at);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes a binary search for the range that the byte in the BYTE local falls in, jumping to the block of the
+         * state that the range leads to.
+         *
+         * @param rangeLows First byte of each range, ascending
+         * @param rangeTargets State that each range leads to
+         * @param from Index of the first range to search
+         * @param to Index of the last range to search
+         * @param blocks Offset of each state's block
+         */
+        private void search(int[] rangeLows, int[] rangeTargets, int from, int to, int[] blocks) {
+            if (from == to) {
+                jump(GOTO, blocks[rangeTargets[from]]);
+                return;
+            }
+            int middle = (from + to + 1) >>> 1;
+            u1(ILOAD);
+            u1(BYTE);
+            pushInt(rangeLows[middle]);
+            int at = size();
+            u1(IF_ICMPGE);
+            u2(0); // Filled in once the lower half is written
+            search(rangeLows, rangeTargets, from, middle - 1, blocks);
+            int offset = size() - at;
+            buf[at + 1] = (byte) (offset >>> 8);
+            buf[at + 2] = (byte) offset;
+            search(rangeLows, rangeTargets, middle, to, blocks);
+        }
+
+        /**
+         * @param rangeLows First byte of each range, ascending
+         * @param from Index of the first range to search
+         * @param to Index of the last range to search
+         * @return Bytes of code written by search
+         */
+        private static int searchSize(int[] rangeLows, int from, int to) {
+            if (from == to) {
+                return 3;
+            }
+            int middle = (from + to + 1) >>> 1;
+            return 2 + pushSize(rangeLows[middle]) + 3
+                    + searchSize(rangeLows, from, middle - 1) + searchSize(rangeLows, middle, to);
+        }
+
+        /**
+         * Pads a switch instruction so that its operands start at a multiple of 4 bytes from the start of the code.
+         */
+        private void pad() {
+            while (size() % 4 != 0) {
+                u1(0);
+            }
+        }
+    }
+
+    /**
+     * Class loader holding a single generated class.
+     */
+    private static class Loader extends ClassLoader {
+
+        Loader() {
+            super(CompiledDFA.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(CLASS_NAME.replace('/', '.'), classFile, 0, classFile.length);
+        }
+    }
+
+    @Override
+    public long initialState() {
+        return dfa.initialState();
+    }
+
+    @Override
+    public long step(long state, int symbol) {
+        return dfa.step(state, symbol);
+    }
+
+    @Override
+    public long run(long state, byte[] input, int from, int to) {
+        return advance((int) state, input, from, to);
+    }
+
+    @Override
+    public boolean isAccepting(long state) {
+        return dfa.isAccepting(state);
+    }
+
+    @Override
+    public boolean isDead(long state) {
+        return dfa.isDead(state);
+    }
+
+    /**
+     * Determines if a range of bytes is accepted.
+     *
+     * @param input Buffer holding the input
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @return true if accepted, false if rejected
+     */
+    public boolean accepts(byte[] input, int from, int to) {
+        return dfa.isAccepting(advance((int) dfa.initialState(), input, from, to));
+    }
+
+    /**
+     * Determines if a string is accepted, reading its UTF-8 encoding.
+     *
+     * @param inputStr String to be processed
+     * @return true if accepted, false if rejected
+     */
+    public boolean accepts(String inputStr) {
+        byte[] input = inputStr.getBytes(StandardCharsets.UTF_8);
+        return accepts(input, 0, input.length);
+    }
+}
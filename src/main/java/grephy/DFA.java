@@ -1,195 +1,540 @@
 package grephy;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * DFA.java - Represents a deterministic finite automaton.
  */
-public class DFA extends NFA {
-    // Subsets for each state during subset construction; indices correspond to state list indices
-    ArrayList<Set<Integer>> stateSubsets = new ArrayList();
+public class DFA extends NFA implements LineAutomaton {
+    // Subsets for each state during subset construction (sorted NFA states); indices correspond to state list indices
+    ArrayList<int[]> stateSubsets = new ArrayList();
+    // Disjoint symbol ranges used as the alphabet; every NFA transition's range is a union of some of them
+    List<SymbolRange> alphabet;
+
+    private static final int SYMBOLS = SymbolRange.MAX_SYMBOL + 1; // Number of distinct bytes
+    private static final int PARALLEL_THRESHOLD = 256; // Fewest states worth splitting across threads
+    // Transition table of the minimized DFA: the state reached from s on byte b is table[s * SYMBOLS + b]
+    private int[] table;
+    private boolean[] accepting; // Accepting flag for each state of the minimized DFA
+    private int deadState = -1; // Rejecting state that every byte leads back to, or -1 if there is none
 
     /**
-     * Constructs a DFA from a given NFA and alphabet using subset construction.
+     * Constructs a DFA from a given NFA, working in parallel if more than one processor is available.
      *
-     * @param nfa
-     * @param alphabet
+     * @param nfa Epsilon-free NFA
      */
-    public DFA (NFA nfa, List<Character> alphabet) {
-        // Create initial state
-        states.add(0);
-        // Create subset for initial state (only contains initial NFA state)
-        stateSubsets.add(new HashSet());
-        stateSubsets.get(0).add(0);
-
-        int i = 0;
-        while (i < states.size()) {
-            for (Character c : alphabet) {
-                List<Transition> cTransitions = new ArrayList(nfa.delta);
-                int index = i;
-                cTransitions.removeIf(t -> !stateSubsets.get(index).contains(t.stateFrom)
-                        || t.symbol.get() != c); // Get transitions coming from a state in current subset on c
-                HashSet<Integer> toStates = new HashSet();
-                // Determine subset of possible next states
-                for (Transition transition : cTransitions) {
-                    toStates.add(transition.stateTo);
+    public DFA (NFA nfa) {
+        this(nfa, ForkJoinPool.getCommonPoolParallelism() > 1);
+    }
+
+    /**
+     * Constructs a DFA from a given NFA using subset construction. The alphabet is the partition of the symbol space
+     * induced by the NFA's transition ranges, so ranges never need to be expanded into individual symbols.
+     *
+     * States are expanded breadth-first one level at a time. In parallel, the subsets reached from every state of a
+     * level are computed at once, and the new ones are then numbered in the order a sequential search would find
+     * them, so both ways build exactly the same DFA.
+     *
+     * @param nfa Epsilon-free NFA
+     * @param parallel true to spread large levels of the search and the minimization across threads
+     */
+    public DFA (NFA nfa, boolean parallel) {
+        this(nfa, parallel, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a DFA from a given NFA, unless subset construction finds more states than a limit.
+     *
+     * @param nfa Epsilon-free NFA
+     * @param maxStates Most states subset construction may create
+     * @return The DFA, or null if it would need more than maxStates states (before minimization)
+     */
+    public static DFA fromNFA(NFA nfa, int maxStates) {
+        DFA dfa = new DFA(nfa, ForkJoinPool.getCommonPoolParallelism() > 1, maxStates);
+        return dfa.table != null ? dfa : null;
+    }
+
+    /**
+     * @param nfa Epsilon-free NFA
+     * @param parallel true to spread large levels of the search and the minimization across threads
+     * @param maxStates Most states subset construction may create; construction stops without a table above it
+     */
+    private DFA (NFA nfa, boolean parallel, int maxStates) {
+        alphabet = SymbolRange.partition(nfa.delta);
+        int[][] moves = symbolMoves(nfa);
+        boolean[] nfaAccepting = new boolean[nfa.states.size()];
+        for (Integer state : nfa.acceptingStates) {
+            nfaAccepting[state] = true;
+        }
+
+        Map<Subset, Integer> subsetStates = new HashMap(); // Finds the state already created for a subset
+        ArrayList<int[]> next = new ArrayList(); // next.get(state)[symbol index] = state reached
+        acceptingStates.clear();
+
+        // Create initial state, whose subset only contains the initial NFA state
+        addState(new Subset(new int[] {INITIAL_STATE}), subsetStates, nfaAccepting);
+
+        int levelStart = 0;
+        while (levelStart < states.size()) {
+            int levelEnd = states.size();
+            IntStream level = IntStream.range(levelStart, levelEnd);
+            if (parallel && levelEnd - levelStart >= PARALLEL_THRESHOLD) {
+                level = level.parallel();
+            }
+            Subset[][] successors = level.mapToObj(i -> successors(stateSubsets.get(i), moves))
+                    .toArray(Subset[][]::new);
+
+            // If no state has a subset yet, create a new state for it
+            for (Subset[] stateSuccessors : successors) {
+                int[] row = new int[alphabet.size()];
+                for (int c = 0; c < row.length; c++) {
+                    Integer j = subsetStates.get(stateSuccessors[c]);
+                    row[c] = j != null ? j : addState(stateSuccessors[c], subsetStates, nfaAccepting);
+                }
+                if (states.size() > maxStates) {
+                    return;
                 }
+                next.add(row);
+            }
+            levelStart = levelEnd;
+        }
 
-                boolean flag = false;
-                for (int j = 0; j < states.size(); j++) {
-                    // If the subsets match, create a transition between them
-                    if (toStates.containsAll(stateSubsets.get(j)) && stateSubsets.get(j).containsAll(toStates)) {
-                        delta.add(new Transition(i, j, Optional.of(c)));
-                        flag = true;
-                        break;
+        minimize(next.toArray(new int[0][]), parallel);
+        buildTable();
+    }
+
+    /**
+     * A subset of NFA states, hashed once so it can be looked up cheaply
+     */
+    private static class Subset {
+        final int[] states; // Sorted NFA states
+        final int hash;
+
+        Subset(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Subset && Arrays.equals(states, ((Subset) o).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Creates a state for a subset during subset construction.
+     *
+     * @param subset Subset of NFA states
+     * @param subsetStates Map of the states already created, which the new state is added to
+     * @param nfaAccepting Accepting flag for each NFA state
+     * @return The new state
+     */
+    private int addState(Subset subset, Map<Subset, Integer> subsetStates, boolean[] nfaAccepting) {
+        int state = states.size();
+        states.add(state);
+        stateSubsets.add(subset.states);
+        subsetStates.put(subset, state);
+        // The state is accepting if its subset contains an NFA accepting state
+        for (int nfaState : subset.states) {
+            if (nfaAccepting[nfaState]) {
+                acceptingStates.add(state);
+                break;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Lists the transitions of each NFA state in terms of the alphabet.
+     *
+     * @param nfa Epsilon-free NFA
+     * @return For each NFA state, triples of (first symbol index, last symbol index, state reached)
+     */
+    private int[][] symbolMoves(NFA nfa) {
+        int[] lows = new int[alphabet.size()];
+        for (int c = 0; c < lows.length; c++) {
+            lows[c] = alphabet.get(c).low;
+        }
+
+        int[][] moves = new int[nfa.states.size()][];
+        Map<Integer, List<Transition>> outgoing = groupByStateFrom(nfa.delta);
+        for (int s = 0; s < moves.length; s++) {
+            List<Transition> transitions = outgoing.getOrDefault(s, Collections.emptyList());
+            moves[s] = new int[transitions.size() * 3];
+            for (int t = 0; t < transitions.size(); t++) {
+                SymbolRange range = transitions.get(t).symbol.get();
+                // Each range starts and ends on alphabet boundaries
+                int after = Arrays.binarySearch(lows, range.high + 1); // Negative if the range ends the alphabet
+                moves[s][t * 3] = Arrays.binarySearch(lows, range.low);
+                moves[s][t * 3 + 1] = (after < 0 ? lows.length : after) - 1;
+                moves[s][t * 3 + 2] = transitions.get(t).stateTo;
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Determines the subset of NFA states reached from a subset on each alphabet symbol.
+     *
+     * @param subset Sorted NFA states
+     * @param moves Transitions of each NFA state from symbolMoves
+     * @return The subset reached on each symbol
+     */
+    private Subset[] successors(int[] subset, int[][] moves) {
+        int[][] reached = new int[alphabet.size()][4];
+        int[] counts = new int[alphabet.size()];
+        for (int state : subset) {
+            int[] m = moves[state];
+            for (int t = 0; t < m.length; t += 3) {
+                for (int c = m[t]; c <= m[t + 1]; c++) {
+                    if (counts[c] == reached[c].length) {
+                        reached[c] = Arrays.copyOf(reached[c], counts[c] * 2);
                     }
+                    reached[c][counts[c]++] = m[t + 2];
                 }
+            }
+        }
 
-                // If no match was found, create a new state using the subset of possible next states
-                if (!flag) {
-                    states.add(states.size() - 1);
-                    delta.add(new Transition(i, states.size() - 1, Optional.of(c)));
-                    stateSubsets.add(new HashSet(toStates));
+        Subset[] result = new Subset[alphabet.size()];
+        for (int c = 0; c < result.length; c++) {
+            int[] sorted = Arrays.copyOf(reached[c], counts[c]);
+            Arrays.sort(sorted);
+            int size = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (size == 0 || sorted[i] != sorted[size - 1]) {
+                    sorted[size++] = sorted[i];
                 }
             }
+            result[c] = new Subset(Arrays.copyOf(sorted, size));
+        }
+        return result;
+    }
 
-            i++;
+    /**
+     * Fills the byte-indexed transition table used for matching and finds the dead state.
+     */
+    private void buildTable() {
+        table = new int[states.size() * SYMBOLS];
+        for (Transition t : delta) {
+            for (int b = t.symbol.get().low; b <= t.symbol.get().high; b++) {
+                table[t.stateFrom * SYMBOLS + b] = t.stateTo;
+            }
         }
 
-        acceptingStates.clear();
-        // Determine the new accepting states from subsets containing NFA accepting states
-        for (i = 0; i < states.size(); i++) {
-            for (Integer state : nfa.acceptingStates) {
-                if (stateSubsets.get(i).contains(state)) {
-                    acceptingStates.add(i);
-                    break;
-                }
+        accepting = new boolean[states.size()];
+        for (Integer state : acceptingStates) {
+            accepting[state] = true;
+        }
+
+        for (int s = 0; s < states.size() && deadState == -1; s++) {
+            boolean dead = !accepting[s];
+            for (int b = 0; b < SYMBOLS && dead; b++) {
+                dead = table[s * SYMBOLS + b] == s;
+            }
+            if (dead) {
+                deadState = s;
             }
         }
+    }
+
+    @Override
+    public long initialState() {
+        return INITIAL_STATE;
+    }
+
+    @Override
+    public long step(long state, int symbol) {
+        return table[(int) state * SYMBOLS + symbol];
+    }
+
+    @Override
+    public long run(long state, byte[] input, int from, int to) {
+        int s = (int) state;
+        for (int i = from; i < to && s != deadState; i++) {
+            s = table[s * SYMBOLS + (input[i] & 0xff)];
+        }
+        return s;
+    }
+
+    @Override
+    public boolean isAccepting(long state) {
+        return accepting[(int) state];
+    }
+
+    @Override
+    public boolean isDead(long state) {
+        return state == deadState;
+    }
+
+    /**
+     * @return The rejecting state that can never be left, or -1 if the DFA has none
+     */
+    public int getDeadState() {
+        return deadState;
+    }
 
-        minimize(alphabet);
+    /**
+     * Determines if a range of bytes is accepted by the DFA, stopping early once the dead state is reached.
+     *
+     * @param input Buffer holding the input
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @return true if accepted, false if rejected
+     */
+    public boolean accepts(byte[] input, int from, int to) {
+        return accepting[(int) run(INITIAL_STATE, input, from, to)];
+    }
+
+    @Override
+    public boolean accepts(String inputStr) {
+        byte[] input = inputStr.getBytes(StandardCharsets.UTF_8);
+        return accepts(input, 0, input.length);
     }
 
     /**
      * Minimizes the DFA using Hopcroft's algorithm (https://en.wikipedia.org/wiki/DFA_minimization#Hopcroft's_algorithm)
+     * The states of each equivalence class are kept together in one array, so a class can be split in time
+     * proportional to the states that move out of it, keeping the whole algorithm O(n log n). In parallel, the
+     * classes are first refined with rounds of Moore's algorithm for as long as they split a large share of the states.
      *
-     * @param alphabet DFA alphabet
+     * @param next Transition table of the unminimized DFA over its alphabet
+     * @param parallel true to refine in parallel first
      */
-    private void minimize(List<Character> alphabet) {
-        ArrayList<ArrayList<Integer>> partitions = new ArrayList(); // Equivalence classes (called P in Hopcroft)
-        partitions.add(new ArrayList(acceptingStates));
-        partitions.add(new ArrayList());
-        for (int i = 0; i < states.size(); i++) {
-            if (!acceptingStates.contains(i)) {
-                partitions.get(1).add(i);
+    private void minimize(int[][] next, boolean parallel) {
+        int numStates = states.size();
+
+        // Start with the accepting and the rejecting states as classes
+        int[] block = new int[numStates]; // Equivalence class of each state
+        boolean[] accepting = new boolean[numStates];
+        for (Integer s : acceptingStates) {
+            accepting[s] = true;
+        }
+        for (int s = 0; s < numStates; s++) {
+            block[s] = accepting[s] == accepting[0] ? 0 : 1;
+        }
+        int numBlocks = acceptingStates.isEmpty() || acceptingStates.size() == numStates ? 1 : 2;
+        if (parallel && numStates >= PARALLEL_THRESHOLD) {
+            numBlocks = refineInParallel(next, block, numBlocks);
+        }
+
+        // Inverse transitions: the states that go to s on symbol c are previous[c][previousStart[c][s]] up to
+        // previous[c][previousStart[c][s + 1]]
+        int[][] previousStart = new int[alphabet.size()][numStates + 1];
+        int[][] previous = new int[alphabet.size()][numStates];
+        for (int c = 0; c < alphabet.size(); c++) {
+            for (int s = 0; s < numStates; s++) {
+                previousStart[c][next[s][c] + 1]++;
+            }
+            for (int s = 0; s < numStates; s++) {
+                previousStart[c][s + 1] += previousStart[c][s];
+            }
+            int[] filled = Arrays.copyOf(previousStart[c], numStates);
+            for (int s = 0; s < numStates; s++) {
+                previous[c][filled[next[s][c]]++] = s;
             }
         }
 
-        ArrayList<ArrayList<Integer>> waiting = new ArrayList(); // Partitions to examine (called W in Hopcroft)
-        waiting.add(new ArrayList(acceptingStates));
+        // Equivalence classes (called P in Hopcroft): class b is elements[blockStart[b]] up to elements[blockEnd[b]]
+        int[] elements = new int[numStates];
+        int[] location = new int[numStates]; // Index of each state in elements
+        int[] blockStart = new int[numStates];
+        int[] blockEnd = new int[numStates];
+        for (int s = 0; s < numStates; s++) {
+            blockEnd[block[s]]++;
+        }
+        for (int b = 1; b < numBlocks; b++) {
+            blockEnd[b] += blockEnd[b - 1];
+        }
+        for (int s = numStates - 1; s >= 0; s--) {
+            location[s] = --blockEnd[block[s]];
+            elements[location[s]] = s;
+        }
+        int largest = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            blockStart[b] = blockEnd[b];
+            blockEnd[b] = b + 1 < numBlocks ? blockEnd[b + 1] : numStates;
+            if (blockEnd[b] - blockStart[b] > blockEnd[largest] - blockStart[largest]) {
+                largest = b;
+            }
+        }
+
+        // Every class but the largest has to be examined (called W in Hopcroft)
+        Deque<Integer> waiting = new ArrayDeque();
+        boolean[] isWaiting = new boolean[numStates];
+        for (int b = 0; b < numBlocks; b++) {
+            if (b != largest) {
+                waiting.add(b);
+                isWaiting[b] = true;
+            }
+        }
+        int[] marked = new int[numStates]; // Number of states of each class moved to its front (X ∩ Y)
+        int[] touched = new int[numStates]; // Classes with marked states
         while (!waiting.isEmpty()) {
-            ArrayList<Integer> A = waiting.remove(0); // Choose set from W
-            for (Character c : alphabet) {
-                HashSet<Integer> X = new HashSet(); // Set of states for which a transition on c leads to a state in A
-                ArrayList<Transition> ts = new ArrayList(delta);
-                ts.removeIf(t -> t.symbol.get() != c || !A.contains(t.stateTo));
-                for (Transition t : ts) {
-                    X.add(t.stateFrom);
+            int a = waiting.poll(); // Choose set from W
+            isWaiting[a] = false;
+            int[] A = Arrays.copyOfRange(elements, blockStart[a], blockEnd[a]);
+            for (int c = 0; c < alphabet.size(); c++) {
+                // Move the states for which a transition on c leads to a state in A to the front of their class
+                int numTouched = 0;
+                for (int s : A) {
+                    for (int i = previousStart[c][s]; i < previousStart[c][s + 1]; i++) {
+                        int from = previous[c][i];
+                        int y = block[from];
+                        int front = blockStart[y] + marked[y];
+                        int displaced = elements[front];
+                        elements[front] = from;
+                        elements[location[from]] = displaced;
+                        location[displaced] = location[from];
+                        location[from] = front;
+                        if (marked[y]++ == 0) {
+                            touched[numTouched++] = y;
+                        }
+                    }
                 }
 
+                for (int t = 0; t < numTouched; t++) {
+                    int y = touched[t];
+                    int count = marked[y];
+                    marked[y] = 0;
+                    if (count == blockEnd[y] - blockStart[y]) {
+                        continue; // Y lies entirely inside X, so it is not split
+                    }
 
-                int i = 0;
-                while (i < partitions.size()) {
-                    ArrayList<Integer> Y = new ArrayList(partitions.get(i));
-                    ArrayList<Integer> xUnionY = new ArrayList(X); // X U Y
-                    xUnionY.retainAll(Y);
-                    ArrayList<Integer> ySubtractX = new ArrayList(Y); // X \ Y
-                    ySubtractX.removeAll(X);
-                    if (!xUnionY.isEmpty() && !ySubtractX.isEmpty()) {
-                        partitions.remove(i); // Replace Y in P by the two sets X ∩ Y and Y \ X
-                        partitions.add(xUnionY);
-                        partitions.add(ySubtractX);
-
-                        boolean flag = false;
-                        int j = 0;
-                        while (j < waiting.size()) {
-                            HashSet<Integer> set = new HashSet(waiting.get(j));
-                            if (set.containsAll(Y) && Y.containsAll(set)) { // If Y is in W
-                                waiting.remove(j); // Replace Y in W by the two sets X ∩ Y and Y \ X
-                                waiting.add(xUnionY);
-                                waiting.add(ySubtractX);
-                                flag = true;
-                                break;
-                            }
-                            j++;
-                        }
-                        // If Y is not in W
-                        if (!flag) {
-                            if (xUnionY.size() <= ySubtractX.size()) {
-                                waiting.add(xUnionY);
-                            } else {
-                                waiting.add(ySubtractX);
-                            }
-                        }
+                    // Replace Y in P by the two sets X ∩ Y (the marked front, which becomes class z) and Y \ X
+                    int z = numBlocks++;
+                    blockStart[z] = blockStart[y];
+                    blockEnd[z] = blockStart[y] + count;
+                    blockStart[y] = blockEnd[z];
+                    for (int i = blockStart[z]; i < blockEnd[z]; i++) {
+                        block[elements[i]] = z;
                     }
 
-                    i++;
+                    if (isWaiting[y]) { // If Y is in W, replace Y in W by the two sets
+                        waiting.add(z);
+                        isWaiting[z] = true;
+                    } else { // Otherwise only the smaller set needs to be examined
+                        int smaller = count <= blockEnd[y] - blockStart[y] ? z : y;
+                        waiting.add(smaller);
+                        isWaiting[smaller] = true;
+                    }
                 }
             }
         }
-        mergeStates(partitions, alphabet);
+
+        int[] representatives = new int[numBlocks]; // One state from each class
+        for (int b = 0; b < numBlocks; b++) {
+            representatives[b] = elements[blockStart[b]];
+        }
+        mergeStates(representatives, block, next);
     }
 
     /**
-     * Turns equivalence classes found by Hopcroft's algorithms into new states to finalize minimization
+     * Refines equivalence classes with rounds of Moore's algorithm, computing every state's signature (its class and
+     * the classes it moves to) in parallel. States with equal signatures stay together; each new class is identified
+     * by its lowest state, which doesn't depend on how the work was split up. Rounds stop once they split off fewer
+     * than 1/64 of the states, since Hopcroft's algorithm finishes the remaining splits more cheaply.
      *
-     * @param partitions Equivalence classes found by Hopcroft's algorithm
-     * @param alphabet DFA alphabet
+     * @param next Transition table of the DFA over its alphabet
+     * @param block Equivalence class of each state, which is refined in place
+     * @param numBlocks Number of classes
+     * @return Number of classes after refining
      */
-    private void mergeStates(List<ArrayList<Integer>> partitions, List<Character> alphabet) {
+    private static int refineInParallel(int[][] next, int[] block, int numBlocks) {
+        int numStates = block.length;
+        while (true) {
+            int[] current = block.clone();
+            Subset[] signatures = new Subset[numStates];
+            ConcurrentHashMap<Subset, Integer> lowestStates = new ConcurrentHashMap();
+            IntStream.range(0, numStates).parallel().forEach(s -> {
+                int[] signature = new int[next[s].length + 1];
+                signature[0] = current[s];
+                for (int c = 0; c < next[s].length; c++) {
+                    signature[c + 1] = current[next[s][c]];
+                }
+                signatures[s] = new Subset(signature);
+                lowestStates.merge(signatures[s], s, Math::min);
+            });
+
+            // Number the new classes densely, in the order of their lowest states
+            int[] numbers = new int[numStates];
+            Arrays.fill(numbers, -1);
+            int newNumBlocks = 0;
+            for (int s = 0; s < numStates; s++) {
+                int lowest = lowestStates.get(signatures[s]);
+                if (numbers[lowest] == -1) {
+                    numbers[lowest] = newNumBlocks++;
+                }
+                block[s] = numbers[lowest];
+            }
+
+            if (newNumBlocks - numBlocks < Math.max(1, numStates / 64)) {
+                return newNumBlocks;
+            }
+            numBlocks = newNumBlocks;
+        }
+    }
+
+    /**
+     * Turns equivalence classes found by Hopcroft's algorithms into new states to finalize minimization. New states
+     * are numbered in breadth-first order from the initial state, so equal DFAs always come out identical, and
+     * transitions to the same state on adjacent ranges are merged into a single transition.
+     *
+     * @param representatives One state from each equivalence class found by Hopcroft's algorithm
+     * @param block Equivalence class of each state
+     * @param next Transition table of the unminimized DFA
+     */
+    private void mergeStates(int[] representatives, int[] block, int[][] next) {
         ArrayList<Integer> newStates = new ArrayList();
         ArrayList<Transition> newDelta = new ArrayList();
         ArrayList<Integer> newAcceptingStates = new ArrayList();
 
-        // Move the partition containing the initial state to the first index
-        int i = 0;
-        while (i < partitions.size()) {
-            if (partitions.get(i).contains(INITIAL_STATE)) {
-                partitions.add(INITIAL_STATE, partitions.get(i));
-                partitions.remove(i+1);
-                break;
+        // Number the partitions in breadth-first order, starting with the one containing the initial state
+        int[] order = new int[representatives.length];
+        Arrays.fill(order, -1);
+        ArrayList<Integer> queue = new ArrayList();
+        order[block[INITIAL_STATE]] = 0;
+        queue.add(block[INITIAL_STATE]);
+        for (int i = 0; i < queue.size(); i++) {
+            int s = representatives[queue.get(i)];
+            for (int c = 0; c < alphabet.size(); c++) {
+                int target = block[next[s][c]];
+                if (order[target] == -1) {
+                    order[target] = queue.size();
+                    queue.add(target);
+                }
             }
-            i++;
         }
 
-        // Determine which partitions contain accepting states and create new corresponding accepting states
-        for (i = 0; i < partitions.size(); i++) {
-            for (int j = 0; j < partitions.get(i).size(); j++) {
-                if (acceptingStates.contains(partitions.get(i).get(j))) {
-                    newAcceptingStates.add(i);
-                    break;
-                }
-            }
+        HashSet<Integer> accepting = new HashSet(acceptingStates);
+        for (int i = 0; i < queue.size(); i++) {
+            int s = representatives[queue.get(i)];
             newStates.add(i);
-        }
+            // Determine which partitions contain accepting states and create new corresponding accepting states
+            if (accepting.contains(s)) {
+                newAcceptingStates.add(i);
+            }
 
-        // Create transitions between partitions that have transitions between the states they contain
-        for (i = 0; i < newStates.size(); i++) {
-            Integer s = partitions.get(i).get(0);
-            for (Character c : alphabet) {
-                ArrayList<Transition> transitions = new ArrayList(delta);
-                transitions.removeIf(t -> t.stateFrom != s || t.symbol.get() != c);
-                Transition t = transitions.get(0);
-                int j = 0;
-                while (j < partitions.size()) {
-                    if (partitions.get(j).contains(t.stateTo)) {
-                        newDelta.add(new Transition(i, j, t.symbol));
-                        break;
-                    }
-                    j++;
+            // Create transitions between partitions, joining adjacent symbol ranges that lead to the same partition
+            int c = 0;
+            while (c < alphabet.size()) {
+                int target = order[block[next[s][c]]];
+                int end = c;
+                while (end + 1 < alphabet.size() && order[block[next[s][end + 1]]] == target) {
+                    end++;
                 }
+                newDelta.add(new Transition(i, target,
+                        Optional.of(new SymbolRange(alphabet.get(c).low, alphabet.get(end).high))));
+                c = end + 1;
             }
-
         }
 
         states = newStates;
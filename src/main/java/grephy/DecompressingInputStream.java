@@ -0,0 +1,162 @@
+package grephy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * DecompressingInputStream.java - Reads a gzip-compressed file, decompressing it on a separate thread.
+ * Decompressed data is handed over in fixed-size buffers through a bounded queue, so decompression and matching
+ * overlap without ever holding the whole file in memory.
+ */
+public class DecompressingInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 4; // Buffers the decompressor may run ahead of the reader
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue(QUEUE_CAPACITY);
+    private final Thread decompressor;
+    private volatile IOException failure; // Set by the decompressor thread if reading the file fails
+
+    private ByteBuffer current = ByteBuffer.allocate(0);
+    private boolean finished = false;
+
+    /**
+     * Opens a gzip file and starts decompressing it in the background.
+     *
+     * @param path Compressed file to read
+     * @throws IOException if the file cannot be opened or is not in gzip format
+     */
+    public DecompressingInputStream(Path path) throws IOException {
+        InputStream file = Files.newInputStream(path);
+        InputStream in;
+        try {
+            in = new GZIPInputStream(file, BUFFER_SIZE); // Reads the header, so it fails if the file isn't gzip
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        decompressor = new Thread(() -> decompress(in), "grephy-gunzip");
+        decompressor.setDaemon(true);
+        decompressor.start();
+    }
+
+    /**
+     * Determines if a file should be read through gzip decompression.
+     *
+     * @param path File being examined
+     * @return true if the file has a gzip extension
+     */
+    public static boolean isCompressed(Path path) {
+        return path.getFileName().toString().endsWith(".gz");
+    }
+
+    /**
+     * Body of the decompressor thread. Fills buffers and queues them until the end of the file.
+     *
+     * @param in Decompressing stream over the file
+     */
+    private void decompress(InputStream in) {
+        try {
+            try {
+                int n = 0;
+                while (n != -1) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int length = 0;
+                    // Fill the buffer completely (unless the stream ends) so the reader gets fixed-size chunks
+                    while (length < BUFFER_SIZE && (n = in.read(buffer, length, BUFFER_SIZE - length)) != -1) {
+                        length += n;
+                    }
+                    if (length > 0) {
+                        queue.put(ByteBuffer.wrap(buffer, 0, length));
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        } catch (InterruptedException e) {
+            return; // Reader was closed, nobody is waiting for more data
+        }
+
+        try {
+            queue.put(END_OF_STREAM);
+        } catch (InterruptedException e) {
+            // Reader was closed
+        }
+    }
+
+    /**
+     * Makes sure the current buffer has data, waiting on the decompressor thread if necessary.
+     *
+     * @return false if the end of the stream was reached
+     * @throws IOException if decompression failed
+     */
+    private boolean fill() throws IOException {
+        while (!current.hasRemaining()) {
+            if (finished) {
+                return false;
+            }
+            try {
+                current = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for decompressed data.", e);
+            }
+            if (current == END_OF_STREAM) {
+                finished = true;
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.remaining();
+    }
+
+    /**
+     * Stops the decompressor thread and discards any data it has queued.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        current = ByteBuffer.allocate(0);
+        decompressor.interrupt();
+        queue.clear();
+    }
+}
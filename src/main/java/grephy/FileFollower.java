@@ -0,0 +1,187 @@
+package grephy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileFollower.java - Keeps searching a file as it grows, like tail -f. Only newly appended bytes are read, and the
+ * LineMatcher carries the partial last line (and its DFA state) over from one read to the next.
+ */
+public class FileFollower {
+    private static final long POLL_MILLIS = 250; // Longest wait between checks when no change is reported
+    private static final int TAIL_SIZE = 64; // Bytes kept from right before the read position
+
+    private final Path path;
+    private final LineMatcher matcher;
+
+    private FileChannel channel;
+    private InputStream in;
+    private Object fileKey; // Identity of the file being read, used to notice when the path is rotated
+    private long lastModified; // Modification time of the file when it was last read
+    // The last bytes read, which are compared with the file to notice it being truncated and then written past them
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private int tailLength = 0;
+
+    /**
+     * @param path File to follow
+     * @param matcher Matcher that lines are passed to
+     */
+    public FileFollower(Path path, LineMatcher matcher) {
+        this.path = path;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Searches the current contents of the file, then waits for it to change and searches whatever was appended.
+     * If the file is truncated it is searched again from the start; if it is replaced (rotated), the rest of the old
+     * file is searched before switching to the new one. Only returns if the thread is interrupted.
+     *
+     * A truncation is noticed even if the file has grown past the read position again by the next check (as with
+     * copy-truncate log rotation): the file is also considered truncated if its modification time went back, or if
+     * the bytes right before the read position are no longer the ones that were read there.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public void follow() throws IOException {
+        open();
+        try (WatchService watcher = path.getFileSystem().newWatchService()) {
+            Path directory = path.toAbsolutePath().getParent();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                // Checked before reading, since what was written after a truncation must be read from the start
+                if (isTruncated()) { // Start over
+                    matcher.discardLine();
+                    channel.position(0);
+                    tailLength = 0;
+                }
+                matcher.read(in);
+
+                if (isRotated()) {
+                    matcher.read(in); // Anything written to the old file before it was replaced
+                    matcher.finish();
+                    channel.close();
+                    open();
+                    continue;
+                }
+
+                // Wait for the directory to report a change, but check again after a while regardless
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens the file at the path from the beginning.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        in = new TailRecordingInputStream(Channels.newInputStream(channel));
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        fileKey = attributes.fileKey();
+        lastModified = attributes.lastModifiedTime().toMillis();
+        tailLength = 0;
+    }
+
+    /**
+     * Determines if the file was truncated since it was last read, even if it has been written to again since.
+     *
+     * @return true if the file no longer continues what has been read
+     * @throws IOException if the file cannot be read
+     */
+    private boolean isTruncated() throws IOException {
+        long position = channel.position();
+        long size = channel.size();
+        if (size < position) {
+            return true;
+        }
+
+        long modified = lastModified;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!Objects.equals(fileKey, attributes.fileKey())) {
+                return false; // Replaced, which isRotated handles
+            }
+            lastModified = attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false; // Moved away, which isRotated handles
+        }
+        if (lastModified < modified) {
+            return true;
+        }
+        if ((size == position && lastModified == modified) || tailLength == 0) {
+            return false;
+        }
+
+        // Written to since the last read, so make sure it was appended to rather than rewritten
+        ByteBuffer current = ByteBuffer.allocate(tailLength);
+        int n = 0;
+        while (current.hasRemaining() && n != -1) { // Positional reads leave the read position alone
+            n = channel.read(current, position - tailLength + current.position());
+        }
+        return current.hasRemaining() || !Arrays.equals(current.array(), Arrays.copyOf(tail, tailLength));
+    }
+
+    /**
+     * Keeps the last TAIL_SIZE bytes read from the file in tail.
+     */
+    private class TailRecordingInputStream extends FilterInputStream {
+        TailRecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n >= TAIL_SIZE) {
+                System.arraycopy(b, off + n - TAIL_SIZE, tail, 0, TAIL_SIZE);
+                tailLength = TAIL_SIZE;
+            } else if (n > 0) {
+                int kept = Math.min(tailLength, TAIL_SIZE - n); // Older bytes still among the last TAIL_SIZE
+                System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+                System.arraycopy(b, off, tail, kept, n);
+                tailLength = kept + n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Determines if the path now refers to a different file than the one being read.
+     *
+     * @return true if the file was replaced, false if it wasn't (or the new file doesn't exist yet)
+     */
+    private boolean isRotated() {
+        try {
+            Object currentKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return fileKey != null && !Objects.equals(fileKey, currentKey);
+        } catch (IOException e) {
+            return false; // Moved away but not recreated yet, keep reading the old file
+        }
+    }
+}
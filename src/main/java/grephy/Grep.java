@@ -3,12 +3,17 @@ package grephy;
 import org.apache.log4j.*;
 
 import javax.xml.bind.ValidationException;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -17,22 +22,38 @@ import java.util.List;
 public class Grep {
     private static final Logger LOGGER = Logger.getLogger(Grep.class);
 
-    private static final String USAGE_MESSAGE = "Usage: java grephy.Grep [-n NFA-FILE] [-d DFA-FILE] REGEX FILE";
+    private static final String USAGE_MESSAGE =
+            "Usage: java grephy.Grep [-n NFA-FILE] [-d DFA-FILE] [--follow] [--line-number] [-A NUM] [-B NUM]\n"
+            + "                         [-C NUM] REGEX FILE\n"
+            + "       java grephy.Grep --server PORT [ROOT...]\n"
+            + "       java grephy.Grep --index DIR";
 
     private static String nfaFile = "";
     private static String dfaFile = "";
+    private static boolean follow = false;
+    private static boolean lineNumbers = false;
+    private static int contextBefore = 0;
+    private static int contextAfter = 0;
 
     private static String regexString;
     private static String inputFile;
 
-    private static List<String> inputFileLines;
-    private static List<Character> alphabetList;
-
     /**
-     * Usage: java grephy.Grep [-n NFA-FILE] [-d DFA-FILE] REGEX FILE
+     * Usage: java grephy.Grep [-n NFA-FILE] [-d DFA-FILE] [--follow] [--line-number] [-A NUM] [-B NUM]
+     *                          [-C NUM] REGEX FILE
+     *        java grephy.Grep --server PORT [ROOT...]
+     *        java grephy.Grep --index DIR
      * Handles argument parsing and program functionality.
-     * Generates an NFA from REGEX, then converts it to a minimized DFA. Prints accepted strings (lines) from specified
-     * FILE at the end.
+     * Generates an NFA from REGEX, then converts it to a minimized DFA, run as generated bytecode if it is small enough
+     * (or, if the NFA is small enough and no DFA-FILE is wanted, a BitParallelNFA). Prints accepted strings (lines)
+     * from specified FILE at the end. FILE may be gzip-compressed (.gz), in which case it is decompressed while being
+     * searched. Lines are matched as raw UTF-8 bytes, so they are never decoded. With --follow, keeps matching lines
+     * as they are appended to FILE until interrupted. With --server, runs a search daemon on a localhost port instead
+     * (see SearchServer), which only searches files inside the ROOT directories (by default, the working directory).
+     * If FILE is a directory, every file in it is searched; --index builds or updates a trigram index of a directory
+     * so that searches of it only read the files that can contain a match (see TrigramIndex).
+     * --line-number prefixes lines with their numbers, and -A, -B and -C also print NUM lines of context after, before,
+     * or around each match (-n already names the NFA file, so line numbers only have the long option).
      *
      * @param args Program arguments
      */
@@ -41,15 +62,24 @@ public class Grep {
         configureLogger();
         LOGGER.setLevel(Level.OFF);
 
-        // There must be at least a regex and input file, and at most those two plus optional args.
-        if (args.length < 2 || args.length > 6) {
+        if (args.length >= 2 && args[0].equals("--server")) {
+            runServer(args[1], Arrays.asList(args).subList(2, args.length));
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--index")) {
+            updateIndex(args[1]);
+            return;
+        }
+
+        // There must be at least a regex and input file
+        if (args.length < 2) {
             System.out.println(USAGE_MESSAGE);
             System.exit(1);
         }
 
-        // Handle optional arguments specifying NFA and DFA output files (order does not matter)
+        // Handle optional arguments (order does not matter), leaving the last two for the regex and input file
         int i;
-        for (i = 0; i < 4 && args[i].charAt(0) == '-'; i++) {
+        for (i = 0; i < args.length - 2 && args[i].length() > 1 && args[i].charAt(0) == '-'; i++) {
             switch (args[i].charAt(1)) {
                 case 'n':
                     if (i + 1 < args.length) {
@@ -71,6 +101,29 @@ public class Grep {
                         System.exit(1);
                     }
                     break;
+                case 'A':
+                    contextAfter = parseContext(args, ++i);
+                    break;
+                case 'B':
+                    contextBefore = parseContext(args, ++i);
+                    break;
+                case 'C':
+                    contextAfter = contextBefore = parseContext(args, ++i);
+                    break;
+                case '-':
+                    if (args[i].equals("--follow")) {
+                        follow = true;
+                        LOGGER.info("Following input file");
+                        break;
+                    }
+                    if (args[i].equals("--line-number")) {
+                        lineNumbers = true;
+                        break;
+                    }
+                    // Unknown long option
+                    System.out.println(USAGE_MESSAGE);
+                    System.exit(1);
+                    break;
                 default:
                     System.out.println(USAGE_MESSAGE);
                     System.exit(1);
@@ -90,12 +143,10 @@ public class Grep {
             System.exit(1);
         }
 
-        learnAlphabet();
-
         // Create a simplified NFA from the regex
         NFA nfa = null;
         try {
-            nfa = RegexConverter.nfaFromRegex(regexString, alphabetList);
+            nfa = RegexConverter.nfaFromRegex(regexString);
         } catch (ValidationException e) {
             LOGGER.error(e);
             System.out.println("Invalid regex: " + e.getMessage());
@@ -105,44 +156,191 @@ public class Grep {
 
         outputDotFile(nfa, nfaFile);
 
-        DFA dfa = new DFA(nfa, alphabetList);
+        // Small patterns are simulated bit-parallel, saving the work of determinization
+        LineAutomaton automaton = dfaFile.isEmpty() ? BitParallelNFA.fromNFA(nfa) : null;
+        if (automaton == null) {
+            DFA dfa = new DFA(nfa);
+            outputDotFile(dfa, dfaFile);
+            // Run the DFA as generated bytecode if it is small enough for the JIT to compile
+            CompiledDFA compiledDFA = CompiledDFA.compile(dfa);
+            automaton = compiledDFA != null ? compiledDFA : dfa;
+        }
 
-        outputDotFile(dfa, dfaFile);
+        // Output matching lines from the input file as they are read
+        BufferedOutputStream out = new BufferedOutputStream(System.out);
+        if (Files.isDirectory(Paths.get(inputFile))) {
+            searchDirectory(automaton, out);
+            return;
+        }
+        LineMatcher matcher = newLineMatcher(automaton, out, "");
+        if (follow) {
+            followInputFile(matcher);
+            return;
+        }
+        try (InputStream in = openInputFile()) {
+            matcher.search(in);
+        } catch (IOException e) {
+            LOGGER.error(e);
+            System.out.println("Unable to read file " + inputFile + ".");
+            System.exit(1);
+        }
+    }
 
-        // Output matching lines from the input file
-        for (String line : inputFileLines) {
-            if (nfa.accepts(line)) {
-                System.out.println(line);
+    /**
+     * Parses the number of lines of context given to -A, -B or -C.
+     *
+     * @param args Program arguments
+     * @param i Index of the number
+     * @return Number of lines
+     */
+    private static int parseContext(String[] args, int i) {
+        try {
+            int lines = Integer.parseInt(args[i]);
+            if (lines >= 0 && i < args.length - 2) {
+                LOGGER.info("Context: " + args[i - 1] + " " + lines);
+                return lines;
             }
+        } catch (NumberFormatException e) {
+            LOGGER.error(e);
         }
+        System.out.println(USAGE_MESSAGE);
+        System.exit(1);
+        return 0;
+    }
 
+    /**
+     * Creates a matcher that writes lines with the line numbers and context asked for.
+     *
+     * @param automaton Automaton to match lines with
+     * @param out Stream that matching lines are written to
+     * @param name File name written before every line, or empty for none
+     * @return The matcher
+     */
+    private static LineMatcher newLineMatcher(LineAutomaton automaton, OutputStream out, String name) {
+        LineMatcher matcher = new LineMatcher(automaton, out, name);
+        matcher.setLineNumbers(lineNumbers);
+        matcher.setContext(contextBefore, contextAfter);
+        return matcher;
+    }
 
+    /**
+     * Opens the input file as raw bytes, decompressing it on the fly if it is gzipped.
+     *
+     * @return Stream over the bytes of the input file
+     * @throws IOException if the file cannot be opened
+     */
+    private static InputStream openInputFile() throws IOException {
+        Path path = Paths.get(inputFile);
+        return DecompressingInputStream.isCompressed(path)
+                ? new DecompressingInputStream(path)
+                : Files.newInputStream(path);
     }
 
     /**
-     * Learns the alphabet from the input file.
+     * Searches every file in the input directory that can contain a match, prefixing lines with the file they are from.
+     *
+     * @param automaton Automaton to match lines with
+     * @param out Stream that matching lines are written to
      */
-    private static void learnAlphabet() {
-        // Attempt to read lines from the input file
+    private static void searchDirectory(LineAutomaton automaton, OutputStream out) {
+        Path directory = Paths.get(inputFile);
+        if (follow) {
+            System.out.println("Unable to follow directory " + inputFile + ".");
+            System.exit(1);
+        }
+
+        List<Path> files = null;
         try {
-            inputFileLines = Files.readAllLines(Paths.get(inputFile));
+            files = TrigramIndex.filesToSearch(directory, regexString);
         } catch (IOException e) {
             LOGGER.error(e);
-            System.out.println("Unable to read file " + inputFile + ".");
+            System.out.println("Unable to read directory " + inputFile + ".");
             System.exit(1);
         }
+        LOGGER.info("Searching " + files.size() + " files");
 
-        // Get all unique characters from the file
-        alphabetList = new ArrayList();
-        for (String line : inputFileLines) {
-            for (char symbol : line.toCharArray()) {
-                if (!alphabetList.contains(symbol)) {
-                    alphabetList.add(symbol);
-                }
+        for (Path path : files) {
+            try (InputStream in = DecompressingInputStream.isCompressed(path)
+                    ? new DecompressingInputStream(path)
+                    : Files.newInputStream(path)) {
+                newLineMatcher(automaton, out, path.toString()).search(in);
+            } catch (IOException e) {
+                LOGGER.error(e);
+                System.out.println("Unable to read file " + path + ".");
+                System.exit(1);
             }
         }
     }
 
+    /**
+     * Builds the trigram index of a directory, or brings it up to date.
+     *
+     * @param directory Directory argument
+     */
+    private static void updateIndex(String directory) {
+        try {
+            int numRead = TrigramIndex.update(Paths.get(directory));
+            System.out.println("Indexed " + numRead + " new or changed files.");
+        } catch (IOException e) {
+            LOGGER.error(e);
+            System.out.println("Unable to index directory " + directory + ".");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the search daemon until the program is stopped. Its token is written to ~/.grephy-server-PORT.token.
+     *
+     * @param port Port number argument
+     * @param rootArgs Directories that may be searched, or none for the working directory
+     */
+    private static void runServer(String port, List<String> rootArgs) {
+        LOGGER.setLevel(Level.INFO);
+        List<Path> roots = new ArrayList();
+        for (String root : rootArgs) {
+            roots.add(Paths.get(root));
+        }
+        if (roots.isEmpty()) {
+            roots.add(Paths.get(""));
+        }
+
+        try {
+            Path tokenFile = Paths.get(System.getProperty("user.home"), ".grephy-server-" + port + ".token");
+            SearchServer server = new SearchServer(Integer.parseInt(port), Runtime.getRuntime().availableProcessors(),
+                    roots, tokenFile);
+            LOGGER.info("Token written to " + tokenFile);
+            server.serve();
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE_MESSAGE);
+            System.exit(1);
+        } catch (IOException e) {
+            LOGGER.error(e);
+            System.out.println("Unable to start server on port " + port + ".");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Matches lines of the input file as they are written, until the program is stopped.
+     *
+     * @param matcher Matcher that lines are passed to
+     */
+    private static void followInputFile(LineMatcher matcher) {
+        Path path = Paths.get(inputFile);
+        if (DecompressingInputStream.isCompressed(path)) {
+            System.out.println("Unable to follow compressed file " + inputFile + ".");
+            System.exit(1);
+        }
+
+        try {
+            new FileFollower(path, matcher).follow();
+        } catch (IOException e) {
+            LOGGER.error(e);
+            System.out.println("Unable to read file " + inputFile + ".");
+            System.exit(1);
+        }
+    }
+
     /**
      * Outputs a DOT language format file to the specified filename.
      *
@@ -177,6 +375,6 @@ public class Grep {
         console.setThreshold(Level.ALL);
         console.activateOptions();
 
-        LOGGER.addAppender(console);
+        Logger.getRootLogger().addAppender(console); // Shared by the loggers of the other classes
     }
 }
@@ -0,0 +1,50 @@
+package grephy;
+
+/**
+ * LineAutomaton.java - An automaton that LineMatcher runs each line through one byte at a time. Its whole state is
+ * held in a long, e.g. a DFA state number or a set of NFA states as a bitmask.
+ */
+public interface LineAutomaton {
+
+    /**
+     * @return State at the start of a line
+     */
+    long initialState();
+
+    /**
+     * Determines the state reached from a state on a byte.
+     *
+     * @param state Current state
+     * @param symbol Byte value (0-255) being read
+     * @return Next state
+     */
+    long step(long state, int symbol);
+
+    /**
+     * Runs the automaton over a range of bytes, stopping early if a dead state is reached.
+     *
+     * @param state State before the first byte
+     * @param input Buffer holding the input
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @return State after the bytes, or a dead state
+     */
+    default long run(long state, byte[] input, int from, int to) {
+        for (int i = from; i < to && !isDead(state); i++) {
+            state = step(state, input[i] & 0xff);
+        }
+        return state;
+    }
+
+    /**
+     * @param state State being examined
+     * @return true if a line ending in this state is accepted
+     */
+    boolean isAccepting(long state);
+
+    /**
+     * @param state State being examined
+     * @return true if no continuation of the line can be accepted from this state
+     */
+    boolean isDead(long state);
+}
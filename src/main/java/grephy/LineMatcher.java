@@ -0,0 +1,334 @@
+package grephy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * LineMatcher.java - Writes out the lines of a byte stream that are accepted by an automaton (a DFA, or a
+ * BitParallelNFA for small patterns). Lines are matched as raw UTF-8 bytes while they are scanned for line breaks, so
+ * input is never decoded into characters.
+ *
+ * Lines can be numbered and surrounded by context like grep -n, -A and -B. Context before a match is found through a
+ * ring of the positions of the last few lines, whose bytes are kept in the buffer until they can no longer be needed,
+ * and context after a match through a countdown of lines still to write. Memory use only depends on how long the lines
+ * are, not on how many there are.
+ */
+public class LineMatcher {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] SEPARATOR = "--\n".getBytes(StandardCharsets.US_ASCII); // Between groups of context
+
+    private final LineAutomaton automaton;
+    private final boolean compiled; // Is the automaton generated code, which is run over whole lines at once?
+    private final long initialState;
+    private final OutputStream out;
+    private final byte[] name; // File name written before every line, or empty
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private long bufferOffset = 0; // Position in the stream of the start of the buffer
+    private int limit = 0; // End of the data in the buffer
+    private int lineStart = 0; // Start of the current line in the buffer
+    private long state; // Automaton state after the bytes of the current line read so far
+    private boolean pendingCR = false; // Was the last byte a \r that has not been fed to the automaton yet?
+    private boolean inLine = false; // Has any byte of the current line been read?
+
+    private boolean lineNumbers = false; // Write each line's number before it?
+    private int after = 0; // Lines of context to write after each match
+    private long lineNumber = 1; // Number of the current line
+    private long lastWritten = 0; // Number of the last line written, or 0 if none has been
+    private int afterLeft = 0; // Lines of context still to write after the last match
+    // Stream positions of the lines before the current one that haven't been written, oldest at contextHead
+    private long[] contextStarts = new long[0];
+    private long[] contextEnds = new long[0];
+    private int contextHead = 0;
+    private int contextCount = 0;
+
+    /**
+     * @param automaton Automaton that lines have to be accepted by
+     * @param out Stream that matching lines are written to
+     */
+    public LineMatcher(LineAutomaton automaton, OutputStream out) {
+        this(automaton, out, "");
+    }
+
+    /**
+     * @param automaton Automaton that lines have to be accepted by
+     * @param out Stream that matching lines are written to
+     * @param name File name written before every line (followed by ':', or '-' for context), or empty for none
+     */
+    public LineMatcher(LineAutomaton automaton, OutputStream out, String name) {
+        this.automaton = automaton;
+        this.compiled = automaton instanceof CompiledDFA;
+        this.initialState = automaton.initialState();
+        this.state = initialState;
+        this.out = out;
+        this.name = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param lineNumbers true to write the number of each line before it
+     */
+    public void setLineNumbers(boolean lineNumbers) {
+        this.lineNumbers = lineNumbers;
+    }
+
+    /**
+     * Sets how many lines around each matching line are written as well. Groups of lines that are not next to each
+     * other are separated by a line of "--".
+     *
+     * @param before Lines of context before each match
+     * @param after Lines of context after each match
+     */
+    public void setContext(int before, int after) {
+        this.after = after;
+        contextStarts = new long[before];
+        contextEnds = new long[before];
+        contextHead = 0;
+        contextCount = 0;
+    }
+
+    /**
+     * Writes every accepted line of a stream, including a final line that is not terminated by a line break.
+     *
+     * @param in Stream to search
+     * @throws IOException if reading or writing fails
+     */
+    public void search(InputStream in) throws IOException {
+        read(in);
+        finish();
+    }
+
+    /**
+     * Reads a stream until it has no more data, writing accepted lines as they are completed. A trailing partial line
+     * is kept, along with its automaton state, until more data completes it or finish() is called, so the same matcher can
+     * be fed again once the stream has more data.
+     *
+     * @param in Stream to read from
+     * @throws IOException if reading or writing fails
+     */
+    public void read(InputStream in) throws IOException {
+        int n;
+        while ((n = fill(in)) != -1) {
+            if (compiled) {
+                scanLines(limit - n);
+            } else {
+                scan(limit - n);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Ends the current line as if a line break had been read, in case the input did not end with one. Lines read
+     * after this are numbered from 1 again.
+     *
+     * @throws IOException if writing fails
+     */
+    public void finish() throws IOException {
+        if (inLine) {
+            endLine(limit);
+        }
+        out.flush();
+        restartNumbering();
+    }
+
+    /**
+     * Throws away the current partial line and numbers lines from 1 again, e.g. because the file it came from was
+     * truncated.
+     */
+    public void discardLine() {
+        lineStart = limit;
+        state = initialState;
+        pendingCR = false;
+        inLine = false;
+        restartNumbering();
+    }
+
+    /**
+     * Forgets the lines read so far, so the next line is line 1 and has no context before it.
+     */
+    private void restartNumbering() {
+        lineNumber = 1;
+        lastWritten = 0;
+        afterLeft = 0;
+        contextCount = 0;
+    }
+
+    /**
+     * Reads more data into the buffer. Lines that are already handled (and can't be needed as context) are
+     * discarded first, and the buffer grows if the lines still needed do not fit.
+     *
+     * @param in Stream to read from
+     * @return Number of bytes read, or -1 at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private int fill(InputStream in) throws IOException {
+        int keep = contextCount > 0 ? (int) (contextStarts[contextHead] - bufferOffset) : lineStart;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            lineStart -= keep;
+            bufferOffset += keep;
+        } else if (limit == buffer.length - 1) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        int n = in.read(buffer, limit, buffer.length - 1 - limit);
+        if (n > 0) {
+            limit += n;
+        }
+        buffer[limit] = '\n'; // Sentinel, so line breaks can be searched for without checking for the limit
+        return n;
+    }
+
+    /**
+     * Runs the automaton over new bytes in the buffer, handling each line break along the way.
+     *
+     * @param pos Index of the first new byte
+     * @throws IOException if writing fails
+     */
+    private void scan(int pos) throws IOException {
+        while (pos < limit) {
+            if (automaton.isDead(state)) {
+                // The line can't be accepted anymore, so skip straight to the next line break
+                while (buffer[pos] != '\n') {
+                    pos++;
+                }
+                if (pos == limit) {
+                    if (afterLeft == 0 && contextStarts.length == 0) {
+                        lineStart = limit; // Nothing in this line needs to be kept
+                    }
+                    pendingCR = false;
+                    return;
+                }
+                pendingCR = pos > lineStart && buffer[pos - 1] == '\r';
+            }
+
+            byte b = buffer[pos++];
+            if (b == '\n') {
+                endLine(pos - 1);
+                lineStart = pos;
+                continue;
+            }
+            inLine = true;
+
+            // Hold back a \r until it is known whether it belongs to a \r\n line break
+            if (pendingCR) {
+                state = automaton.step(state, '\r');
+            }
+            pendingCR = b == '\r';
+            if (!pendingCR) {
+                state = automaton.step(state, b & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Same as scan, but each line is found first and then handed to the automaton in one piece, which stops early once
+     * the line can't be accepted anymore. This lets generated code keep its state in a local variable for the whole
+     * line, but is slower than scan for a transition table, whose fused loop finds line breaks and steps in one pass.
+     *
+     * @param pos Index of the first new byte
+     * @throws IOException if writing fails
+     */
+    private void scanLines(int pos) throws IOException {
+        while (pos < limit) {
+            int end = pos; // End of the line, or of the data read so far
+            while (buffer[end] != '\n') {
+                end++;
+            }
+
+            if (end > pos) {
+                inLine = true;
+                if (pendingCR) {
+                    state = automaton.step(state, '\r'); // It wasn't part of a \r\n line break after all
+                }
+                // Hold back a \r until it is known whether it belongs to a \r\n line break
+                pendingCR = buffer[end - 1] == '\r';
+                state = automaton.run(state, buffer, pos, pendingCR ? end - 1 : end);
+            }
+
+            if (end == limit) {
+                if (automaton.isDead(state) && afterLeft == 0 && contextStarts.length == 0) {
+                    lineStart = limit; // Nothing in this line needs to be kept
+                    pendingCR = false;
+                }
+                return;
+            }
+            endLine(end);
+            pos = end + 1;
+            lineStart = pos;
+        }
+    }
+
+    /**
+     * Writes out the current line if it was accepted, along with its context, and resets the automaton for the next
+     * line. A line that isn't written is remembered in case it turns out to be context before a later match.
+     *
+     * @param end Index of the line break (or end of data) ending the line
+     * @throws IOException if writing fails
+     */
+    private void endLine(int end) throws IOException {
+        if (pendingCR) {
+            end--; // Leave out the \r of a \r\n line break
+        }
+        if (automaton.isAccepting(state)) {
+            // The remembered lines are the ones right before this one
+            for (int i = 0; i < contextCount; i++) {
+                int k = (contextHead + i) % contextStarts.length;
+                writeLine((int) (contextStarts[k] - bufferOffset), (int) (contextEnds[k] - bufferOffset),
+                        lineNumber - contextCount + i, '-');
+            }
+            contextCount = 0;
+            writeLine(lineStart, end, lineNumber, ':');
+            afterLeft = after;
+        } else if (afterLeft > 0) {
+            writeLine(lineStart, end, lineNumber, '-');
+            afterLeft--;
+        } else if (contextStarts.length > 0) {
+            // Remember the line, replacing the oldest one if the ring is full
+            int k = (contextHead + contextCount) % contextStarts.length;
+            contextStarts[k] = bufferOffset + lineStart;
+            contextEnds[k] = bufferOffset + end;
+            if (contextCount < contextStarts.length) {
+                contextCount++;
+            } else {
+                contextHead = (contextHead + 1) % contextStarts.length;
+            }
+        }
+        lineNumber++;
+        state = initialState;
+        pendingCR = false;
+        inLine = false;
+        lineStart = end;
+    }
+
+    /**
+     * Writes a line from the buffer, preceded by the file name and line number if they are wanted.
+     *
+     * @param from Index of the first byte of the line
+     * @param to Index after the last byte of the line
+     * @param number Line number
+     * @param separator ':' for a matching line, '-' for context
+     * @throws IOException if writing fails
+     */
+    private void writeLine(int from, int to, long number, char separator) throws IOException {
+        boolean context = after > 0 || contextStarts.length > 0;
+        if (context && lastWritten > 0 && number > lastWritten + 1) {
+            out.write(SEPARATOR);
+        }
+        if (name.length > 0) {
+            out.write(name);
+            out.write(separator);
+        }
+        if (lineNumbers) {
+            out.write(Long.toString(number).getBytes(StandardCharsets.US_ASCII));
+            out.write(separator);
+        }
+        out.write(buffer, from, to - from);
+        out.write('\n');
+        lastWritten = number;
+    }
+}
@@ -1,5 +1,6 @@
 package grephy;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -29,19 +30,21 @@ public class NFA {
     }
 
     /**
-     * Constructs an NFA with a single transition on a specified character.
+     * Constructs an NFA that moves from its initial state to its accepting state on any symbol in a set of ranges.
      *
-     * @param c The character to transition on
+     * @param ranges The symbol ranges to transition on
      */
-    public NFA(char c) {
+    public NFA(List<SymbolRange> ranges) {
         this.acceptingStates.add(INITIAL_STATE + 1); // Accept on the second state
 
-        // Create two states and a transition between them on c
+        // Create two states and a transition between them for each range
         for (int i = 0; i < 2; i++) {
             this.states.add(i);
         }
 
-        this.delta.add(new Transition(INITIAL_STATE, INITIAL_STATE + 1, Optional.of(c)));
+        for (SymbolRange range : ranges) {
+            this.delta.add(new Transition(INITIAL_STATE, INITIAL_STATE + 1, Optional.of(range)));
+        }
     }
 
     /**
@@ -52,56 +55,52 @@ public class NFA {
     }
 
     /**
-     * Determines if a string is accepted or rejected by the NFA.
+     * Determines if a string is accepted or rejected by the NFA. Every state the NFA could be in is tracked at once,
+     * so each byte is read only once and time is linear in the length of the input.
      *
      * @param state Starting state
-     * @param inputStr String being processed
-     * @param pos Current position in the string
+     * @param input UTF-8 bytes being processed
+     * @param pos Current position in the input
      * @return true if accepted, false if rejected
      */
-    public boolean accepts(int state, String inputStr, int pos) {
-        // At the end of the string, check if epsilon goes anywhere, if not, check if in accepting state
-        if (pos == inputStr.length()) {
-            List<Transition> transitions = new ArrayList(deltaE);
-            transitions.removeIf(t -> t.stateFrom != state);
-            for (int i = 0; i < transitions.size(); i++) {
-                if (accepts(transitions.get(i).stateTo, inputStr, pos))
-                    return true;
+    public boolean accepts(int state, byte[] input, int pos) {
+        Map<Integer, List<Transition>> symbolMoves = groupByStateFrom(delta);
+        Map<Integer, List<Transition>> epsilonMoves = groupByStateFrom(deltaE);
+
+        Set<Integer> current = new HashSet();
+        current.add(state);
+        current.addAll(findEClose(state, epsilonMoves));
+
+        for (; pos < input.length && !current.isEmpty(); pos++) {
+            int c = input[pos] & 0xff;
+            Set<Integer> next = new HashSet();
+            for (Integer from : current) {
+                for (Transition t : symbolMoves.getOrDefault(from, Collections.emptyList())) {
+                    if (t.symbol.get().contains(c) && next.add(t.stateTo)) {
+                        next.addAll(findEClose(t.stateTo, epsilonMoves));
+                    }
+                }
             }
-            return acceptingStates.contains(state);
-        }
-
-        char c = inputStr.charAt(pos);
-        List<Transition> transitions = new ArrayList(delta);
-        transitions.removeIf(t -> t.stateFrom != state || t.symbol.get() != c); // Get transitions from current state on c
-
-        // Recursively check transitions on current character to see if they lead to accepting state
-        for (int i = 0; i < transitions.size(); i++) {
-            if (accepts(transitions.get(i).stateTo, inputStr, pos+1))
-                return true;
+            current = next;
         }
 
-        transitions = new ArrayList(deltaE);
-        transitions.removeIf(t -> t.stateFrom != state); // Get epsilon transitions from current state
-        // Recursively check transitions on empty string to see if they lead to accepting state
-        for (int i = 0; i < transitions.size(); i++) {
-            if (accepts(transitions.get(i).stateTo, inputStr, pos))
+        for (Integer accepting : acceptingStates) {
+            if (current.contains(accepting)) {
                 return true;
+            }
         }
-
-        // If nothing has accepted, reject the string
         return false;
     }
 
     /**
      * Determines if a string is accepted or rejected by the NFA, starting from the initial state and beginning of
-     * the string.
+     * the string. The NFA reads the string's UTF-8 encoding.
      *
      * @param inputStr String to be processed
      * @return true if accepted, false if rejected
      */
     public boolean accepts(String inputStr) {
-        return accepts (INITIAL_STATE, inputStr, 0);
+        return accepts (INITIAL_STATE, inputStr.getBytes(StandardCharsets.UTF_8), 0);
     }
 
     /**
@@ -126,13 +125,9 @@ public class NFA {
         result.add("start -> " + INITIAL_STATE + ";"); // Initial arrow
         // Create transitions on symbols
         for (Transition t : delta) {
-            String s;
-            if (t.symbol.get() == '\\') { // Avoid DOT escape character weirdness
-                s = t.stateFrom + " -> " + t.stateTo + " [label=\"\\\\\"];";
-            } else {
-                s = t.stateFrom + " -> " + t.stateTo + " [label=\"" + t.symbol.get() + "\"];";
-            }
-            result.add(s);
+            // Avoid DOT escape character weirdness
+            String label = t.symbol.get().toString().replace("\\", "\\\\").replace("\"", "\\\"");
+            result.add(t.stateFrom + " -> " + t.stateTo + " [label=\"" + label + "\"];");
         }
         // Create transitions on empty string
         for (Transition t : deltaE) {
@@ -148,10 +143,12 @@ public class NFA {
      */
     public void removeEpsilons() {
         ArrayList<Integer> oldAcceptingStates = new ArrayList(acceptingStates);
+        Map<Integer, List<Transition>> symbolMoves = groupByStateFrom(delta);
+        Map<Integer, List<Transition>> epsilonMoves = groupByStateFrom(deltaE);
 
         // Use epsilon closure to find accepting states and add new symbol transitions where epsilons aren't needed
         for (int i = 0; i < states.size(); i++) {
-            ArrayList<Integer> eClose = findEClose(i, new ArrayList<Integer>());
+            Set<Integer> eClose = findEClose(i, epsilonMoves);
             for (Integer state : oldAcceptingStates) {
                 if (eClose.contains(state)) {
                     acceptingStates.add(i);
@@ -159,48 +156,55 @@ public class NFA {
                 }
             }
 
-            for (int j = 0; j < states.size(); j++) {
-                for (Integer state : eClose) {
-                    ArrayList<Transition> ts = new ArrayList(delta);
-                    int index = j;
-                    ts.removeIf(t -> t.stateFrom != state || t.stateTo != index);
-                    for (Transition t : ts) {
-                        delta.add(new Transition(i, j, t.symbol));
-                    }
+            for (Integer state : eClose) {
+                for (Transition t : symbolMoves.getOrDefault(state, Collections.emptyList())) {
+                    delta.add(new Transition(i, t.stateTo, t.symbol));
                 }
             }
         }
 
         // Remove transitions from unreachable states
-        for (int i = 1; i < states.size(); i++) {
-            ArrayList<Transition> ts = new ArrayList(delta);
-            int index = i;
-            if (ts.stream().filter(t -> t.stateTo == index).collect(Collectors.toList()).isEmpty()) {
-                delta.removeIf(t -> t.stateFrom == index);
-            }
-        }
+        Set<Integer> reachable = delta.stream().map(t -> t.stateTo).collect(Collectors.toSet());
+        delta.removeIf(t -> t.stateFrom != INITIAL_STATE && !reachable.contains(t.stateFrom));
 
         // Get rid of the epsilon transitions
         deltaE.clear();
     }
 
     /**
-     * Determines the epsilon closure of a given state.
+     * Determines the epsilon closure of a given state (not including the state itself unless it is on a cycle).
      *
      * @param state State being examined
-     * @param states States in the epsilon closure (so far)
+     * @param epsilonMoves Epsilon transitions grouped by the state they come from
      * @return Full epsilon closure
      */
-    private ArrayList<Integer> findEClose(int state, ArrayList<Integer> states) {
-        List<Transition> transitions = new ArrayList(deltaE);
-        transitions.removeIf(t -> t.stateFrom != state);
-
-        for (Transition t : transitions) {
-            if (!states.contains(t.stateTo))
-                states.add(t.stateTo);
-            states = findEClose(t.stateTo, states);
+    private Set<Integer> findEClose(int state, Map<Integer, List<Transition>> epsilonMoves) {
+        Set<Integer> states = new LinkedHashSet();
+        Deque<Integer> toExplore = new ArrayDeque();
+        toExplore.push(state);
+
+        while (!toExplore.isEmpty()) {
+            for (Transition t : epsilonMoves.getOrDefault(toExplore.pop(), Collections.emptyList())) {
+                if (states.add(t.stateTo)) { // Only explore each state once, epsilon transitions can form cycles
+                    toExplore.push(t.stateTo);
+                }
+            }
         }
 
         return states;
     }
+
+    /**
+     * Groups transitions by the state they come from.
+     *
+     * @param transitions Transitions to group
+     * @return Map from each state to its outgoing transitions
+     */
+    protected static Map<Integer, List<Transition>> groupByStateFrom(List<Transition> transitions) {
+        Map<Integer, List<Transition>> result = new HashMap();
+        for (Transition t : transitions) {
+            result.computeIfAbsent(t.stateFrom, k -> new ArrayList()).add(t);
+        }
+        return result;
+    }
 }
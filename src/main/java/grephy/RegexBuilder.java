@@ -0,0 +1,50 @@
+package grephy;
+
+import java.util.List;
+
+/**
+ * RegexBuilder.java - Builds a value (such as an NFA) out of the parts of a regex as RegexConverter parses it.
+ *
+ * @param <T> Type of value built for each subexpression
+ */
+public interface RegexBuilder<T> {
+
+    /**
+     * @return Value for the empty regex, which matches only the empty string
+     */
+    T empty();
+
+    /**
+     * @param ranges Code point ranges of a literal, wildcard or bracket expression
+     * @return Value for a single character from any of the ranges
+     */
+    T codePoints(List<SymbolRange> ranges);
+
+    /**
+     * @param first Value for the first subexpression (may be reused by the builder)
+     * @param second Value for the second subexpression (may be reused by the builder)
+     * @return Value for the concatenation of the two
+     */
+    T concat(T first, T second);
+
+    /**
+     * @param first Value for the first alternative (may be reused by the builder)
+     * @param second Value for the second alternative (may be reused by the builder)
+     * @return Value for the union of the two
+     */
+    T union(T first, T second);
+
+    /**
+     * @param value Value for the repeated subexpression (may be reused by the builder)
+     * @return Value for 0 or more repetitions
+     */
+    T star(T value);
+
+    /**
+     * @param value Value for the repeated subexpression (may be reused by the builder)
+     * @param min Minimum number of repetitions
+     * @param max Maximum number of repetitions, or -1 for no maximum
+     * @return Value for between min and max repetitions
+     */
+    T repeat(T value, int min, int max);
+}
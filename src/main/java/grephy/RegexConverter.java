@@ -1,7 +1,11 @@
 package grephy;
 
 import javax.xml.bind.ValidationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Stack;
 
@@ -9,6 +13,89 @@ import java.util.Stack;
  * RegexConverter.java - Handles converting regex to NFA.
  */
 public class RegexConverter {
+    public static final int MAX_REPETITION = 1000; // Highest count allowed in {m,n}, since each copy adds states
+    public static final int MAX_NFA_STATES = 100000; // Most states the NFA of a regex may have, counting every copy
+
+    /**
+     * Builds NFAs from the parts of a regex using the Thompson-style constructions below
+     */
+    private static final RegexBuilder<NFA> NFA_BUILDER = new RegexBuilder<NFA>() {
+        @Override
+        public NFA empty() {
+            return new NFA(1);
+        }
+
+        @Override
+        public NFA codePoints(List<SymbolRange> ranges) {
+            return RegexConverter.codePoints(ranges);
+        }
+
+        @Override
+        public NFA concat(NFA first, NFA second) {
+            return RegexConverter.concat(first, second);
+        }
+
+        @Override
+        public NFA union(NFA first, NFA second) {
+            return RegexConverter.union(first, second);
+        }
+
+        @Override
+        public NFA star(NFA n) {
+            return kleeneStar(n);
+        }
+
+        @Override
+        public NFA repeat(NFA n, int min, int max) {
+            return min == 0 && max == 1 ? optional(n) : RegexConverter.repeat(n, min, max);
+        }
+    };
+
+    /**
+     * Counts the states of the NFA that NFA_BUILDER would build, without building it. Nested repetitions multiply the
+     * size of what they repeat, so counts are capped just above MAX_NFA_STATES to keep them from overflowing.
+     */
+    private static final RegexBuilder<Long> NFA_SIZE_BUILDER = new RegexBuilder<Long>() {
+        @Override
+        public Long empty() {
+            return 1L;
+        }
+
+        @Override
+        public Long codePoints(List<SymbolRange> ranges) {
+            return (long) RegexConverter.codePoints(ranges).states.size();
+        }
+
+        @Override
+        public Long concat(Long first, Long second) {
+            return cap(first + second - 1);
+        }
+
+        @Override
+        public Long union(Long first, Long second) {
+            return cap(first + second + 2);
+        }
+
+        @Override
+        public Long star(Long n) {
+            return cap(n + 2);
+        }
+
+        @Override
+        public Long repeat(Long n, int min, int max) {
+            if (min == 0 && max == 1) {
+                return union(n, empty());
+            }
+            // Each copy shares its first state with the end of the previous one, like in RegexConverter.repeat
+            long size = 1 + min * (n - 1);
+            size += max == -1 ? star(n) - 1 : (max - min) * (union(n, empty()) - 1);
+            return cap(size);
+        }
+
+        private long cap(long size) {
+            return Math.min(size, MAX_NFA_STATES + 1L);
+        }
+    };
 
     /**
      * Represents the different regex operators
@@ -131,124 +218,410 @@ public class RegexConverter {
     }
 
     /**
-     * Converts a regular expression string (in grep format) to an NFA.
+     * Creates an NFA that matches either an input NFA or the empty string
+     *
+     * @param n NFA to make optional
+     * @return n?
+     */
+    private static NFA optional(NFA n) {
+        return union(n, new NFA(1));
+    }
+
+    /**
+     * Creates an NFA that matches an input NFA between min and max times
+     *
+     * @param n NFA to repeat
+     * @param min Minimum number of repetitions
+     * @param max Maximum number of repetitions, or -1 for no maximum
+     * @return n{min,max}
+     */
+    private static NFA repeat(NFA n, int min, int max) {
+        NFA result = new NFA(1); // Matches only the empty string
+
+        for (int i = 0; i < min; i++) {
+            result = concat(result, copy(n));
+        }
+        if (max == -1) {
+            result = concat(result, kleeneStar(copy(n)));
+        } else {
+            for (int i = min; i < max; i++) {
+                result = concat(result, optional(copy(n)));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates an NFA that reads the UTF-8 encoding of any code point in a set of ranges. Each range becomes one
+     * path of byte range transitions per UTF-8 byte sequence it needs. Paths are built from their last byte back,
+     * sharing the states of identical endings (such as the continuation bytes common to most sequences), so classes
+     * and . stay small.
+     *
+     * @param ranges Code point ranges to match
+     * @return NFA over UTF-8 bytes
+     */
+    private static NFA codePoints(List<SymbolRange> ranges) {
+        final int accepting = -1; // Placeholder, since the accepting state has to be numbered last
+        NFA result = new NFA(1);
+        Map<Integer, Map<SymbolRange, Integer>> suffixStates = new HashMap(); // State reading a range into a state
+
+        for (SymbolRange range : ranges) {
+            for (List<SymbolRange> sequence : Utf8Sequences.fromCodePoints(range.low, range.high)) {
+                int next = accepting;
+                for (int i = sequence.size() - 1; i > 0; i--) {
+                    Map<SymbolRange, Integer> byRange = suffixStates.computeIfAbsent(next, k -> new HashMap());
+                    Integer state = byRange.get(sequence.get(i));
+                    if (state == null) {
+                        state = result.states.size();
+                        result.states.add(state);
+                        result.delta.add(new Transition(state, next, Optional.of(sequence.get(i))));
+                        byRange.put(sequence.get(i), state);
+                    }
+                    next = state;
+                }
+                result.delta.add(new Transition(0, next, Optional.of(sequence.get(0))));
+            }
+        }
+
+        result.states.add(result.states.size());
+        for (Transition t : result.delta) {
+            if (t.stateTo == accepting) {
+                t.stateTo = result.states.size() - 1;
+            }
+        }
+        result.acceptingStates.clear();
+        result.acceptingStates.add(result.states.size() - 1);
+        return result;
+    }
+
+    /**
+     * Creates an independent copy of an NFA, since the other operations reuse their inputs
+     *
+     * @param n NFA to copy
+     * @return A copy of n
+     */
+    private static NFA copy(NFA n) {
+        NFA result = new NFA(n.states.size());
+        result.delta.addAll(n.delta); // Transitions are never modified, only added and removed, so they can be shared
+        result.deltaE.addAll(n.deltaE);
+        result.acceptingStates.clear();
+        result.acceptingStates.addAll(n.acceptingStates);
+        return result;
+    }
+
+    /**
+     * Parses a bracket expression such as [a-z_], [^0-9] or []abc].
+     *
+     * @param regex Regular expression string
+     * @param start Index of the opening [
+     * @param ranges List that the code point ranges of the class get added to
+     * @return Index of the closing ]
+     * @throws ValidationException if the bracket expression is not closed or has a reversed range
+     */
+    private static int parseCharacterClass(String regex, int start, List<SymbolRange> ranges)
+            throws ValidationException {
+        List<SymbolRange> members = new ArrayList();
+        int i = start + 1;
+        boolean negated = i < regex.length() && regex.charAt(i) == '^';
+        if (negated) {
+            i++;
+        }
+
+        boolean first = true; // A ] right after the opening bracket is a literal
+        while (i < regex.length() && (regex.charAt(i) != ']' || first)) {
+            first = false;
+            int low = regex.codePointAt(i);
+            if (low == '\\' && i + 1 < regex.length()) {
+                low = regex.codePointAt(++i);
+            }
+            i += Character.charCount(low) - 1;
+            int high = low;
+            // A - between two members makes a range, anywhere else it is a literal
+            if (i + 2 < regex.length() && regex.charAt(i + 1) == '-' && regex.charAt(i + 2) != ']') {
+                i += 2;
+                high = regex.codePointAt(i);
+                if (high == '\\' && i + 1 < regex.length()) {
+                    high = regex.codePointAt(++i);
+                }
+                i += Character.charCount(high) - 1;
+                if (high < low) {
+                    throw new ValidationException("Invalid range " + new String(Character.toChars(low)) + "-"
+                            + new String(Character.toChars(high)) + " in regex.");
+                }
+            }
+            members.add(new SymbolRange(low, high));
+            i++;
+        }
+
+        if (i == regex.length()) {
+            throw new ValidationException("Mismatched brackets in regex.");
+        }
+
+        ranges.addAll(negated
+                ? SymbolRange.complement(members, Character.MAX_CODE_POINT)
+                : SymbolRange.normalize(members));
+        return i;
+    }
+
+    /**
+     * Parses a bounded repetition such as {3}, {2,5} or {2,}. A { that isn't followed by one of these forms is not a
+     * repetition, and is matched literally like in other grep implementations (e.g. in {"level":"error"}).
+     *
+     * @param regex Regular expression string
+     * @param start Index of the opening {
+     * @param bounds Array that receives the minimum and maximum (-1 if unbounded) repetitions
+     * @return Index of the closing }, or -1 if the { doesn't start a repetition
+     * @throws ValidationException if the bounds are out of order or larger than MAX_REPETITION
+     */
+    private static int parseRepetition(String regex, int start, int[] bounds) throws ValidationException {
+        int end = regex.indexOf('}', start);
+        if (end == -1 || !regex.substring(start + 1, end).matches("[0-9]+(,[0-9]*)?")) {
+            return -1;
+        }
+
+        String[] parts = regex.substring(start + 1, end).split(",", -1);
+        bounds[0] = parseCount(parts[0]);
+        bounds[1] = parts.length == 1 ? bounds[0] : parts[1].isEmpty() ? -1 : parseCount(parts[1]);
+        if (bounds[1] != -1 && bounds[1] < bounds[0]) {
+            throw new ValidationException("Invalid repetition in regex.");
+        }
+        return end;
+    }
+
+    /**
+     * @param digits Count of a repetition, as decimal digits
+     * @return The count
+     * @throws ValidationException if the count is larger than MAX_REPETITION
+     */
+    private static int parseCount(String digits) throws ValidationException {
+        // Long enough strings of digits would overflow, and are too large anyway
+        if (digits.length() > 9 || Integer.parseInt(digits) > MAX_REPETITION) {
+            throw new ValidationException("Repetition count above " + MAX_REPETITION + " in regex.");
+        }
+        return Integer.parseInt(digits);
+    }
+
+    /**
+     * Determines if an operator on the stack should be applied before another binary operator is pushed. Only
+     * concatenations are; unions wait until all of their alternatives have been read, and are then combined at once
+     * by applyAll.
+     *
+     * @param op Operator on the stack
+     * @return true if op should be applied before the next operator is pushed
+     */
+    private static boolean precedes(OPERATOR op) {
+        return op == OPERATOR.CONCAT;
+    }
+
+    /**
+     * Concatenates the top two operands.
+     *
+     * @param operands Operand stack
+     * @param builder Builder that combines the operands
+     * @throws ValidationException if there are not enough operands
+     */
+    private static <T> void applyConcat(Stack<T> operands, RegexBuilder<T> builder) throws ValidationException {
+        if (operands.size() < 2) {
+            throw new ValidationException("Operator missing operand.");
+        }
+        T operand2 = operands.pop();
+        T operand1 = operands.pop();
+        operands.push(builder.concat(operand1, operand2));
+    }
+
+    /**
+     * Applies the operators on the stack down to the nearest open parenthesis. The alternatives of a union are
+     * combined as a balanced tree rather than a chain, so long unions don't build deep chains of epsilon transitions.
+     *
+     * @param operators Operator stack
+     * @param operands Operand stack
+     * @param builder Builder that combines the operands
+     * @throws ValidationException if there are not enough operands
+     */
+    private static <T> void applyAll(Stack<OPERATOR> operators, Stack<T> operands, RegexBuilder<T> builder)
+            throws ValidationException {
+        int alternatives = 1;
+        while (!operators.empty() && operators.peek() != OPERATOR.PARENTHESES) {
+            if (operators.pop() == OPERATOR.CONCAT) {
+                applyConcat(operands, builder);
+            } else {
+                alternatives++;
+            }
+        }
+
+        if (operands.size() < alternatives) {
+            throw new ValidationException("Operator missing operand.");
+        }
+        List<T> union = new ArrayList(operands.subList(operands.size() - alternatives, operands.size()));
+        operands.setSize(operands.size() - alternatives);
+        operands.push(union(union, 0, union.size(), builder));
+    }
+
+    /**
+     * Combines a range of alternatives, splitting it in half so the union tree stays balanced.
+     *
+     * @param alternatives Alternatives in the order they were read
+     * @param from Index of the first alternative
+     * @param to Index after the last alternative
+     * @param builder Builder that combines the alternatives
+     * @return The union of the alternatives
+     */
+    private static <T> T union(List<T> alternatives, int from, int to, RegexBuilder<T> builder) {
+        if (to - from == 1) {
+            return alternatives.get(from);
+        }
+        int middle = (from + to) >>> 1;
+        return builder.union(union(alternatives, from, middle, builder), union(alternatives, middle, to, builder));
+    }
+
+    /**
+     * Pushes a binary operator, first applying any operators on the stack that take precedence over it.
+     *
+     * @param op Operator to push
+     * @param operators Operator stack
+     * @param operands Operand stack
+     * @param builder Builder that combines the operands
+     * @throws ValidationException if there are not enough operands
+     */
+    private static <T> void pushOperator(OPERATOR op, Stack<OPERATOR> operators, Stack<T> operands,
+                                         RegexBuilder<T> builder) throws ValidationException {
+        while (!operators.empty() && precedes(operators.peek())) {
+            operators.pop();
+            applyConcat(operands, builder);
+        }
+        operators.push(op);
+    }
+
+    /**
+     * Converts a regular expression string (in grep format) to an NFA over UTF-8 bytes.
+     * Supports literals, escapes (\), the wildcard (.), bracket expressions ([...] and [^...]), grouping, union (|)
+     * and the repetition operators *, +, ? and {m,n}.
      *
      * @param regex Regular expression string
-     * @param alphabet Alphabet to be used in the NFA
      * @return The created NFA
+     * @throws ValidationException if the regex is not formatted correctly, or its NFA would be too large
+     */
+    public static NFA nfaFromRegex(String regex) throws ValidationException {
+        // Checked before building anything, since copies of large repetitions can exhaust the heap
+        if (parse(regex, NFA_SIZE_BUILDER) > MAX_NFA_STATES) {
+            throw new ValidationException("Regex too large: its NFA would have more than " + MAX_NFA_STATES
+                    + " states.");
+        }
+        return parse(regex, NFA_BUILDER);
+    }
+
+    /**
+     * Parses a regular expression string (in the syntax described for nfaFromRegex), passing its parts to a builder
+     * in the order they are combined.
+     *
+     * @param regex Regular expression string
+     * @param builder Builder for the value of each subexpression
+     * @return The value built for the whole regex
      * @throws ValidationException if the regex is not formatted correctly
      */
-    public static NFA nfaFromRegex(String regex, List<Character> alphabet) throws ValidationException {
+    public static <T> T parse(String regex, RegexBuilder<T> builder) throws ValidationException {
         Stack<OPERATOR> operators = new Stack(); // Operators get added to the top as they are read and popped off when used
-        Stack<NFA> operands = new Stack(); // Operand NFAs are added to the top and popped off when operators are used
-        Stack<NFA> concats = new Stack(); // NFAs being concatenated together
+        Stack<T> operands = new Stack(); // Operands are added to the top and popped off when operators are used
         boolean shouldConcat = false; // Should the next operand be concatenated?
-        boolean charEscaped = false; // Was backslash used to indicate an escaped character?
         char c; // Current character
-        OPERATOR op; // Current operator
-        int numParentheses = 0;
-        NFA nfa1, nfa2;
+        T operand; // Operand read at the current position, if any
+        int[] bounds = new int[2]; // Bounds of a {m,n} repetition
+        int repetitionEnd; // Index of the } ending a repetition, or -1 if a { doesn't start one
 
         for (int i = 0; i < regex.length(); i++) {
             c = regex.charAt(i);
-            if (c == '\\') {
-                charEscaped = true;
-                c = regex.charAt(++i);
+            operand = null;
+            repetitionEnd = c == '{' ? parseRepetition(regex, i, bounds) : -1;
+
+            if (c == '\\') { // Escaped characters are always literals
+                if (i + 1 == regex.length()) {
+                    throw new ValidationException("Trailing backslash in regex.");
+                }
+                int codePoint = regex.codePointAt(++i);
+                i += Character.charCount(codePoint) - 1;
+                operand = builder.codePoints(Collections.singletonList(new SymbolRange(codePoint)));
+            } else if (c == '.') {
+                operand = builder.codePoints(Collections.singletonList(new SymbolRange(0, Character.MAX_CODE_POINT)));
+            } else if (c == '[') {
+                List<SymbolRange> ranges = new ArrayList();
+                i = parseCharacterClass(regex, i, ranges);
+                operand = builder.codePoints(ranges);
+            } else if (!isOperator(c) || (c == '{' && (repetitionEnd == -1 || !shouldConcat))) {
+                // Including a { that doesn't start a repetition, or has nothing to repeat
+                int codePoint = regex.codePointAt(i);
+                i += Character.charCount(codePoint) - 1;
+                operand = builder.codePoints(Collections.singletonList(new SymbolRange(codePoint)));
             }
 
-            if (alphabet.contains(c) || charEscaped) { // If not an operator, or an escaped character of any kind
-                charEscaped = false;
-                operands.push(new NFA(c));
+            if (operand != null) {
                 if (shouldConcat) {
-                    operators.push(OPERATOR.CONCAT);
-                } else {
-                    shouldConcat = true;
+                    pushOperator(OPERATOR.CONCAT, operators, operands, builder);
                 }
-            } else {
-                if (c == ')') {
-                    shouldConcat = true;
-                    if (numParentheses == 0) {
-                        throw new ValidationException("Mismatched parentheses in regex.");
-                    } else {
-                        numParentheses--;
-                    }
-
-                    // Handle groupings of operators denoted by parentheses (work backwards until open paren)
-                    while (!operators.empty() && operators.peek() != OPERATOR.PARENTHESES) {
-                        op = operators.pop();
-                        if (op == OPERATOR.CONCAT) {
-                            nfa2 = operands.pop();
-                            nfa1 = operands.pop();
-                            operands.push(concat(nfa1, nfa2));
-                        } else if (op == OPERATOR.UNION) {
-                            nfa2 = operands.pop();
-
-                            if (!operators.empty() && operators.peek() == OPERATOR.CONCAT) {
-                                concats.push(operands.pop());
-                                while (!operators.empty() && operators.peek() == OPERATOR.CONCAT) {
-                                    concats.push(operands.pop());
-                                    operators.pop();
-                                }
-                                nfa1 = concat(concats.pop(), concats.pop());
-                                while (concats.size() > 0) {
-                                    nfa1 = concat(nfa1, concats.pop());
-                                }
-                            } else {
-                                nfa1 = operands.pop();
-                            }
-                            operands.push(union(nfa1, nfa2));
-                        }
-                    }
-                } else if (c == '*') {
-                    operands.push(kleeneStar(operands.pop()));
-                    shouldConcat = true;
-                } else if (c == '(') {
-                    if (operands.size() > 0 && i < regex.length()-1
-                            && regex.charAt(i + 1) != '(' && regex.charAt(i - 1) != '|') {
-                        operators.push(OPERATOR.CONCAT);
-                    }
-                    operators.push(OPERATOR.PARENTHESES);
-                    numParentheses++;
-                    shouldConcat = false;
-                } else if (c == '|') {
-                    operators.push(OPERATOR.UNION);
-                    shouldConcat = false;
+                operands.push(operand);
+                shouldConcat = true;
+            } else if (c == '(') {
+                if (shouldConcat) {
+                    pushOperator(OPERATOR.CONCAT, operators, operands, builder);
+                }
+                operators.push(OPERATOR.PARENTHESES);
+                shouldConcat = false;
+            } else if (c == ')') {
+                if (!shouldConcat) { // Empty group or alternative
+                    operands.push(builder.empty());
+                }
+                // Handle groupings of operators denoted by parentheses (work backwards until open paren)
+                applyAll(operators, operands, builder);
+                if (operators.empty()) {
+                    throw new ValidationException("Mismatched parentheses in regex.");
+                }
+                operators.pop();
+                shouldConcat = true;
+            } else if (c == '|') {
+                if (!shouldConcat) { // Empty alternative
+                    operands.push(builder.empty());
+                }
+                pushOperator(OPERATOR.UNION, operators, operands, builder);
+                shouldConcat = false;
+            } else { // Repetition operators apply to the operand right before them
+                if (!shouldConcat) { // Nothing to repeat
+                    throw new ValidationException("Operator missing operand.");
+                }
+                if (c == '*') {
+                    operands.push(builder.star(operands.pop()));
+                } else if (c == '+') {
+                    operands.push(builder.repeat(operands.pop(), 1, -1));
+                } else if (c == '?') {
+                    operands.push(builder.repeat(operands.pop(), 0, 1));
+                } else if (c == '{') {
+                    operands.push(builder.repeat(operands.pop(), bounds[0], bounds[1]));
+                    i = repetitionEnd;
                 }
             }
         }
 
+        if (!shouldConcat) { // Empty regex or trailing empty alternative
+            operands.push(builder.empty());
+        }
+
         // Go through remaining operators and perform operations as needed
-        while (operators.size() > 0) {
-            if (operands.size() < 2) {
-                throw new ValidationException("Operator missing operand.");
-            }
-            op = operators.pop();
-            if (op == OPERATOR.CONCAT) {
-                nfa2 = operands.pop();
-                nfa1 = operands.pop();
-                operands.push(concat(nfa1, nfa2));
-            } else if (op == OPERATOR.UNION) {
-                nfa2 = operands.pop();
-
-                if (!operators.empty() && operators.peek() == OPERATOR.CONCAT) {
-                    concats.push(operands.pop());
-                    while (!operators.empty() && operators.peek() == OPERATOR.CONCAT) {
-                        concats.push(operands.pop());
-                        operators.pop();
-                    }
-                    nfa1 = concat(concats.pop(), concats.pop());
-                    while (concats.size() > 0) {
-                        nfa1 = concat(nfa1, concats.pop());
-                    }
-                } else {
-                    nfa1 = operands.pop();
-                }
-                operands.push(union(nfa1, nfa2));
-            }
+        applyAll(operators, operands, builder);
+        if (!operators.empty()) {
+            throw new ValidationException("Mismatched parentheses in regex.");
         }
 
-        // The completed NFA will be at the top of the operand stack
+        // The completed value will be at the top of the operand stack
         return operands.pop();
     }
 
+    /**
+     * Determines if a character has special meaning when it is not escaped.
+     *
+     * @param c Character being examined
+     * @return true if c is an operator
+     */
+    private static boolean isOperator(char c) {
+        return c == '(' || c == ')' || c == '|' || c == '*' || c == '+' || c == '?' || c == '{';
+    }
+
 }
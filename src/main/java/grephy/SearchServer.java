@@ -0,0 +1,393 @@
+package grephy;
+
+import org.apache.log4j.Logger;
+
+import javax.xml.bind.ValidationException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SearchServer.java - Long-running search daemon. Listens on a localhost TCP port and serves searches from a worker
+ * pool, so queries don't pay for JVM startup, and compiled DFAs are cached so repeated patterns skip compilation. DFAs
+ * small enough are turned into bytecode (see CompiledDFA), which pays off for patterns that are searched again and
+ * again.
+ *
+ * Protocol: the client first sends the server's token, which is written to a file only the server's user can read
+ * when it starts (the server refuses to start if it can't restrict the file to its user). It then sends one argument
+ * per line, as it would on the command line ([--line-number] [-A NUM] [-B NUM] [-C NUM] [--] REGEX followed by one
+ * or more FILEs), and ends the request with an empty line. -n, -d and --follow are not supported, since the server
+ * neither writes files nor keeps searching after a request. The server streams back the matching lines, prefixed with
+ * "FILE:" when more than one file was given, and closes the connection when the search is done. A FILE that is a
+ * directory is searched like Grep searches one, narrowed down by its trigram index if it has one. Only files inside
+ * the roots given at startup can be searched.
+ *
+ * Every part of a request that decides how much memory it takes is bounded before anything is built: the length of the
+ * request, the lines of context, and the size of the regex's NFA (see RegexConverter.MAX_NFA_STATES) and DFA.
+ */
+public class SearchServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SearchServer.class);
+
+    private static final int CACHE_SIZE = 256; // Most compiled DFAs kept at once
+    private static final int MAX_DFA_STATES = 4096; // Most states a DFA may have before minimization (1 KB per state)
+    private static final int READ_TIMEOUT_MILLIS = 10000; // Longest wait for the next line of a request
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024; // Most characters in a request, including line breaks
+    private static final int MAX_CONTEXT_LINES = 10000; // Most lines of context, which are remembered in arrays
+    private static final int TOKEN_BYTES = 32;
+    private static final String USAGE_MESSAGE = "Usage: [--line-number] [-A NUM] [-B NUM] [-C NUM] [--] REGEX FILE...";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final List<Path> roots = new ArrayList(); // Real paths of the directories that may be searched
+    private final byte[] token;
+    private final AtomicInteger numCompiled = new AtomicInteger();
+
+    // Compiled DFAs by regex, least recently used first
+    private final Map<String, LineAutomaton> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, LineAutomaton>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LineAutomaton> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Starts listening, and writes a new random token to the token file, readable only by the current user.
+     *
+     * @param port Local port to listen on, or 0 for any free port
+     * @param numWorkers Number of searches that can run at once
+     * @param roots Directories that files can be searched in
+     * @param tokenFile File the token that clients have to send is written to
+     * @throws IOException if the port cannot be listened on, a root doesn't exist, or the token cannot be written
+     */
+    public SearchServer(int port, int numWorkers, List<Path> roots, Path tokenFile) throws IOException {
+        for (Path root : roots) {
+            this.roots.add(root.toRealPath());
+        }
+
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        token = hex.toString().getBytes(StandardCharsets.UTF_8);
+
+        createPrivateFile(tokenFile);
+        Files.write(tokenFile, Arrays.asList(hex.toString()), StandardCharsets.UTF_8);
+
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.workers = Executors.newFixedThreadPool(numWorkers);
+    }
+
+    /**
+     * Creates an empty file that only the current user can read and write, replacing the file if it exists so that it
+     * doesn't keep its old permissions. File systems without POSIX permissions get an access control list instead.
+     *
+     * @param path File to create
+     * @throws IOException if the file cannot be created, or its permissions cannot be restricted
+     */
+    private static void createPrivateFile(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        Set<String> views = path.getFileSystem().supportedFileAttributeViews();
+        if (views.contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else if (views.contains("acl")) {
+            Files.createFile(path);
+            AclFileAttributeView view = Files.getFileAttributeView(path, AclFileAttributeView.class);
+            view.setAcl(Collections.singletonList(AclEntry.newBuilder()
+                    .setType(AclEntryType.ALLOW)
+                    .setPrincipal(view.getOwner())
+                    .setPermissions(EnumSet.allOf(AclEntryPermission.class))
+                    .build()));
+        } else {
+            throw new IOException("Unable to make " + path + " readable only by its owner.");
+        }
+    }
+
+    /**
+     * @return Port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of regexes compiled so far, which is the number of searches that missed the cache
+     */
+    public int getNumCompiled() {
+        return numCompiled.get();
+    }
+
+    /**
+     * Accepts connections until the server is closed, handing each one to a worker.
+     *
+     * @throws IOException if accepting a connection fails
+     */
+    public void serve() throws IOException {
+        LOGGER.info("Listening on " + serverSocket.getLocalSocketAddress());
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                workers.execute(() -> handle(socket));
+            }
+        } catch (SocketException e) {
+            if (!serverSocket.isClosed()) {
+                throw e;
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Stops accepting connections. Searches that are already running are finished.
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Reads a request from a connection and streams the results back. A search that fails with an exception is
+     * reported to the client; an Error only closes the connection, so the client isn't left waiting either way.
+     *
+     * @param socket Client connection
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            try {
+                List<String> lines = readRequest(reader);
+                if (lines == null) {
+                    writeMessage(out, "Request longer than " + MAX_REQUEST_LENGTH + " characters.");
+                } else if (lines.isEmpty()
+                        || !MessageDigest.isEqual(lines.get(0).getBytes(StandardCharsets.UTF_8), token)) {
+                    writeMessage(out, "Invalid token.");
+                } else {
+                    search(lines.subList(1, lines.size()), out);
+                }
+            } catch (Exception e) { // Errors aren't caught, since the heap or thread they happened in can't be trusted
+                LOGGER.error("Search failed", e);
+                writeMessage(out, "Search failed: " + e);
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.error(e);
+        }
+    }
+
+    /**
+     * Reads the lines of a request up to the empty line (or end of stream) that ends it.
+     *
+     * @param reader Client connection
+     * @return The lines, or null if the request is longer than MAX_REQUEST_LENGTH
+     * @throws IOException if reading fails or times out
+     */
+    private static List<String> readRequest(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList();
+        StringBuilder line = new StringBuilder();
+        for (int length = 0; length < MAX_REQUEST_LENGTH; length++) {
+            int c = reader.read();
+            if (c == -1 || c == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
+                }
+                if (line.length() == 0) {
+                    return lines;
+                }
+                lines.add(line.toString());
+                line.setLength(0);
+                if (c == -1) {
+                    return lines;
+                }
+            } else {
+                line.append((char) c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a search request.
+     *
+     * @param args Options, then REGEX followed by the files to search
+     * @param out Stream that results and error messages are written to
+     * @throws IOException if writing to the client fails
+     */
+    private void search(List<String> args, OutputStream out) throws IOException {
+        // Handle optional arguments, like Grep does
+        boolean lineNumbers = false;
+        int contextBefore = 0;
+        int contextAfter = 0;
+        int i;
+        for (i = 0; i < args.size() && args.get(i).startsWith("-"); i++) {
+            String option = args.get(i);
+            if (option.equals("--")) {
+                i++;
+                break;
+            } else if (option.equals("--line-number")) {
+                lineNumbers = true;
+            } else if (option.matches("-[ABC]") && i + 1 < args.size() && args.get(i + 1).matches("[0-9]{1,9}")
+                    && Integer.parseInt(args.get(i + 1)) <= MAX_CONTEXT_LINES) {
+                int lines = Integer.parseInt(args.get(++i));
+                if (option.charAt(1) != 'B') {
+                    contextAfter = lines;
+                }
+                if (option.charAt(1) != 'A') {
+                    contextBefore = lines;
+                }
+            } else {
+                writeMessage(out, USAGE_MESSAGE);
+                return;
+            }
+        }
+
+        if (args.size() - i < 2) {
+            writeMessage(out, USAGE_MESSAGE);
+            return;
+        }
+        String regex = args.get(i);
+        List<String> fileArgs = args.subList(i + 1, args.size());
+
+        LineAutomaton dfa;
+        try {
+            dfa = compile(regex);
+        } catch (ValidationException e) {
+            writeMessage(out, "Invalid regex: " + e.getMessage());
+            return;
+        }
+        if (dfa == null) {
+            writeMessage(out, "Regex too complex: its DFA has more than " + MAX_DFA_STATES + " states.");
+            return;
+        }
+
+        List<Path> files = new ArrayList();
+        for (String file : fileArgs) {
+            Path path = Paths.get(file);
+            if (!isAllowed(path)) {
+                writeMessage(out, "Unable to read file " + file + ".");
+                continue;
+            }
+            if (!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            try {
+                files.addAll(TrigramIndex.filesToSearch(path, regex));
+            } catch (IOException e) {
+                LOGGER.error(e);
+                writeMessage(out, "Unable to read directory " + file + ".");
+            }
+        }
+
+        boolean prefixed = fileArgs.size() > 1 || Files.isDirectory(Paths.get(fileArgs.get(0)));
+        for (Path path : files) {
+            String name = prefixed ? path.toString() : "";
+            // Checked again, since a directory can contain links to files outside of the roots
+            if (!isAllowed(path)) {
+                writeMessage(out, "Unable to read file " + path + ".");
+                continue;
+            }
+            try (InputStream in = open(path.toRealPath())) {
+                LineMatcher matcher = new LineMatcher(dfa, out, name);
+                matcher.setLineNumbers(lineNumbers);
+                matcher.setContext(contextBefore, contextAfter);
+                matcher.search(in);
+            } catch (IOException e) {
+                LOGGER.error(e);
+                writeMessage(out, "Unable to read file " + path + ".");
+            }
+        }
+    }
+
+    /**
+     * Opens a file as raw bytes, decompressing it on the fly if it is gzipped.
+     *
+     * @param path File to open
+     * @return Stream over the bytes of the file
+     * @throws IOException if the file cannot be opened
+     */
+    private static InputStream open(Path path) throws IOException {
+        return DecompressingInputStream.isCompressed(path)
+                ? new DecompressingInputStream(path)
+                : Files.newInputStream(path);
+    }
+
+    /**
+     * Determines if a file may be searched. Links are followed, so a file is only allowed if what it really is lies
+     * inside one of the roots. Files that don't exist aren't allowed, so the reply doesn't reveal if they do elsewhere.
+     *
+     * @param path File or directory asked for
+     * @return true if the path exists and is inside a root
+     */
+    private boolean isAllowed(Path path) {
+        try {
+            Path realPath = path.toRealPath();
+            for (Path root : roots) {
+                if (realPath.startsWith(root)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error(e);
+        }
+        return false;
+    }
+
+    /**
+     * Gets the DFA for a regex from the cache, compiling it if it isn't there. Patterns whose DFA would be too big are
+     * simulated bit-parallel instead, if their NFA is small enough.
+     *
+     * @param regex Regular expression string
+     * @return Minimized DFA for the regex, as bytecode if it is small enough, or null if the regex is too complex
+     * @throws ValidationException if the regex is not formatted correctly
+     */
+    private LineAutomaton compile(String regex) throws ValidationException {
+        LineAutomaton dfa = cache.get(regex);
+        if (dfa == null) {
+            NFA nfa = RegexConverter.nfaFromRegex(regex);
+            nfa.removeEpsilons();
+            DFA minimized = DFA.fromNFA(nfa, MAX_DFA_STATES);
+            if (minimized == null) {
+                dfa = BitParallelNFA.fromNFA(nfa);
+            } else {
+                CompiledDFA compiled = CompiledDFA.compile(minimized);
+                dfa = compiled != null ? compiled : minimized;
+            }
+            if (dfa == null) {
+                return null;
+            }
+            cache.put(regex, dfa);
+            numCompiled.incrementAndGet();
+            LOGGER.info("Compiled " + regex);
+        }
+        return dfa;
+    }
+
+    private static void writeMessage(OutputStream out, String message) throws IOException {
+        out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,145 @@
+package grephy;
+
+import java.util.*;
+
+/**
+ * SymbolRange.java - Represents an inclusive range of symbols that a transition can be taken on. Automata read UTF-8
+ * bytes, but ranges of code points are also used while parsing a regex.
+ */
+public class SymbolRange implements Comparable<SymbolRange> {
+    public static final int MAX_SYMBOL = 0xFF; // Largest symbol (byte value) an automaton can read
+
+    public final int low;
+    public final int high;
+
+    public SymbolRange(int low, int high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Constructs a range containing a single symbol.
+     *
+     * @param symbol The only symbol in the range
+     */
+    public SymbolRange(int symbol) {
+        this(symbol, symbol);
+    }
+
+    /**
+     * Determines if a symbol falls within the range.
+     *
+     * @param symbol Symbol being examined
+     * @return true if low <= symbol <= high
+     */
+    public boolean contains(int symbol) {
+        return low <= symbol && symbol <= high;
+    }
+
+    /**
+     * Sorts a set of ranges and merges the ones that overlap or touch.
+     *
+     * @param ranges Ranges to normalize
+     * @return Sorted, disjoint, non-adjacent ranges covering the same symbols
+     */
+    public static List<SymbolRange> normalize(List<SymbolRange> ranges) {
+        List<SymbolRange> sorted = new ArrayList(ranges);
+        Collections.sort(sorted);
+
+        List<SymbolRange> result = new ArrayList();
+        for (SymbolRange range : sorted) {
+            if (!result.isEmpty() && range.low <= result.get(result.size() - 1).high + 1) {
+                SymbolRange last = result.remove(result.size() - 1);
+                result.add(new SymbolRange(last.low, Math.max(last.high, range.high)));
+            } else {
+                result.add(range);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines the symbols NOT covered by a set of ranges.
+     *
+     * @param ranges Ranges to complement
+     * @param max Largest symbol to include in the complement
+     * @return Normalized ranges covering every other symbol up to max
+     */
+    public static List<SymbolRange> complement(List<SymbolRange> ranges, int max) {
+        List<SymbolRange> result = new ArrayList();
+        int next = 0;
+        for (SymbolRange range : normalize(ranges)) {
+            if (range.low > next) {
+                result.add(new SymbolRange(next, range.low - 1));
+            }
+            next = range.high + 1;
+        }
+        if (next <= max) {
+            result.add(new SymbolRange(next, max));
+        }
+        return result;
+    }
+
+    /**
+     * Splits the full symbol space into the coarsest set of disjoint ranges such that every transition's range is
+     * a union of them. These ranges act as the alphabet during DFA construction, so no transition ever has to be
+     * expanded into one transition per symbol.
+     *
+     * @param transitions Transitions whose ranges must be respected
+     * @return Sorted, disjoint ranges covering 0 to MAX_SYMBOL
+     */
+    public static List<SymbolRange> partition(Collection<Transition> transitions) {
+        TreeSet<Integer> cuts = new TreeSet(); // Symbols that start a new range
+        cuts.add(0);
+        cuts.add(MAX_SYMBOL + 1);
+        for (Transition t : transitions) {
+            cuts.add(t.symbol.get().low);
+            cuts.add(t.symbol.get().high + 1);
+        }
+
+        List<SymbolRange> result = new ArrayList();
+        Integer low = cuts.pollFirst();
+        while (!cuts.isEmpty()) {
+            Integer next = cuts.pollFirst();
+            result.add(new SymbolRange(low, next - 1));
+            low = next;
+        }
+        return result;
+    }
+
+    @Override
+    public int compareTo(SymbolRange other) {
+        return low != other.low ? Integer.compare(low, other.low) : Integer.compare(high, other.high);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SymbolRange)) {
+            return false;
+        }
+        SymbolRange other = (SymbolRange) o;
+        return low == other.low && high == other.high;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * low + high;
+    }
+
+    /**
+     * Readable label for the range, e.g. "a", "a-z" or "0x80-0xBF" for bytes that are not printable ASCII.
+     *
+     * @return Label for the range
+     */
+    @Override
+    public String toString() {
+        return low == high ? label(low) : label(low) + "-" + label(high);
+    }
+
+    private static String label(int symbol) {
+        if (symbol > ' ' && symbol < 0x7f) {
+            return String.valueOf((char) symbol);
+        }
+        return String.format("0x%02X", symbol);
+    }
+}
@@ -8,9 +8,9 @@ import java.util.Optional;
 public class Transition {
     public int stateFrom;
     public int stateTo;
-    public Optional<Character> symbol; // Can be empty in the case of epsilon transitions
+    public Optional<SymbolRange> symbol; // Can be empty in the case of epsilon transitions
 
-    public Transition(int stateFrom, int stateTo, Optional<Character> symbol) {
+    public Transition(int stateFrom, int stateTo, Optional<SymbolRange> symbol) {
         this.stateFrom = stateFrom;
         this.stateTo = stateTo;
         this.symbol = symbol;
@@ -0,0 +1,213 @@
+package grephy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * TrigramExtractor.java - Works out what a regex's matches must contain, following the approach of Russ Cox's
+ * "Regular Expression Matching with a Trigram Index". For each subexpression it tracks the exact strings it can
+ * match (while there are few enough), the possible prefixes and suffixes of its matches, and a trigram query that
+ * every match satisfies. Strings are UTF-8 byte strings stored one byte per char.
+ */
+public class TrigramExtractor implements RegexBuilder<TrigramExtractor.Info> {
+    private static final int MAX_SET_SIZE = 16; // Largest set of strings tracked before it is turned into a query
+
+    /**
+     * What is known about the matches of a subexpression
+     */
+    public static class Info {
+        boolean emptyable; // Can it match the empty string?
+        Set<String> exact; // Every string it matches, or null if unknown
+        Set<String> prefix; // Every match starts with one of these
+        Set<String> suffix; // Every match ends with one of these
+        TrigramQuery match = TrigramQuery.ALL; // Every match satisfies this query
+
+        /**
+         * Combines all of the information into a single query.
+         *
+         * @return Query satisfied by any text containing a match
+         */
+        public TrigramQuery toQuery() {
+            if (exact != null) {
+                return match.and(TrigramQuery.anyOf(exact));
+            }
+            return match.and(TrigramQuery.anyOf(prefix)).and(TrigramQuery.anyOf(suffix));
+        }
+    }
+
+    @Override
+    public Info empty() {
+        Info result = new Info();
+        result.emptyable = true;
+        result.exact = set("");
+        result.prefix = set("");
+        result.suffix = set("");
+        return result;
+    }
+
+    @Override
+    public Info codePoints(List<SymbolRange> ranges) {
+        Info result = new Info();
+        Set<String> strings = new TreeSet();
+        for (SymbolRange range : ranges) {
+            for (int c = range.low; c <= range.high && strings.size() <= MAX_SET_SIZE; c++) {
+                if (Character.getType(c) != Character.SURROGATE) {
+                    strings.add(new String(Utf8Sequences.encode(c), StandardCharsets.ISO_8859_1));
+                }
+            }
+        }
+
+        if (strings.size() <= MAX_SET_SIZE) {
+            result.exact = strings;
+            result.prefix = new TreeSet(strings);
+            result.suffix = new TreeSet(strings);
+        } else { // Too many characters to be useful, such as .
+            result.prefix = set("");
+            result.suffix = set("");
+        }
+        return result;
+    }
+
+    @Override
+    public Info concat(Info first, Info second) {
+        Info result = new Info();
+        result.emptyable = first.emptyable && second.emptyable;
+        result.match = first.match.and(second.match);
+
+        if (first.exact != null && second.exact != null) {
+            result.exact = cross(first.exact, second.exact);
+        }
+        if (first.exact != null) {
+            result.prefix = cross(first.exact, second.prefix);
+        } else {
+            result.prefix = first.emptyable ? union(first.prefix, second.prefix) : new TreeSet(first.prefix);
+        }
+        if (second.exact != null) {
+            result.suffix = cross(first.suffix, second.exact);
+        } else {
+            result.suffix = second.emptyable ? union(first.suffix, second.suffix) : new TreeSet(second.suffix);
+        }
+
+        // Every match contains the end of a match of the first followed by the start of a match of the second
+        if (first.suffix.size() * second.prefix.size() <= MAX_SET_SIZE) {
+            result.match = result.match.and(TrigramQuery.anyOf(cross(first.suffix, second.prefix)));
+        }
+
+        simplify(result);
+        return result;
+    }
+
+    @Override
+    public Info union(Info first, Info second) {
+        // If only one side has exact strings, fold them into its query before they are lost
+        if (first.exact != null && second.exact == null) {
+            first.match = first.match.and(TrigramQuery.anyOf(first.exact));
+        } else if (first.exact == null && second.exact != null) {
+            second.match = second.match.and(TrigramQuery.anyOf(second.exact));
+        }
+
+        Info result = new Info();
+        result.emptyable = first.emptyable || second.emptyable;
+        if (first.exact != null && second.exact != null) {
+            result.exact = union(first.exact, second.exact);
+        }
+        result.prefix = union(first.prefix, second.prefix);
+        result.suffix = union(first.suffix, second.suffix);
+        result.match = first.match.or(second.match);
+
+        simplify(result);
+        return result;
+    }
+
+    @Override
+    public Info star(Info value) {
+        Info result = new Info();
+        result.emptyable = true;
+        result.prefix = set("");
+        result.suffix = set("");
+        return result;
+    }
+
+    @Override
+    public Info repeat(Info value, int min, int max) {
+        if (max == 0) {
+            return empty();
+        }
+        if (min == 0) {
+            return max == 1 ? union(value, empty()) : star(value);
+        }
+        if (min == max && value.exact != null && Math.pow(value.exact.size(), min) <= MAX_SET_SIZE) {
+            Info result = value;
+            for (int i = 1; i < min; i++) {
+                result = concat(result, value);
+            }
+            return result;
+        }
+
+        // At least one full match, so whatever holds for every match holds here too
+        Info result = new Info();
+        result.emptyable = value.emptyable;
+        result.prefix = new TreeSet(value.exact != null ? value.exact : value.prefix);
+        result.suffix = new TreeSet(value.exact != null ? value.exact : value.suffix);
+        result.match = value.exact != null ? value.match.and(TrigramQuery.anyOf(value.exact)) : value.match;
+        simplify(result);
+        return result;
+    }
+
+    /**
+     * Keeps string sets small: oversized exact sets are folded into the query, and oversized prefix or suffix sets
+     * are folded into the query and then cut down to their first or last two bytes.
+     *
+     * @param info Info to simplify
+     */
+    private static void simplify(Info info) {
+        if (info.exact != null && info.exact.size() > MAX_SET_SIZE) {
+            info.match = info.match.and(TrigramQuery.anyOf(info.exact));
+            info.exact = null;
+        }
+        if (info.prefix.size() > MAX_SET_SIZE) {
+            info.match = info.match.and(TrigramQuery.anyOf(info.prefix));
+            info.prefix = trim(info.prefix, true);
+        }
+        if (info.suffix.size() > MAX_SET_SIZE) {
+            info.match = info.match.and(TrigramQuery.anyOf(info.suffix));
+            info.suffix = trim(info.suffix, false);
+        }
+    }
+
+    /**
+     * Shortens strings to two bytes, which is still true of every match, giving up entirely if that isn't enough.
+     *
+     * @param strings Prefixes or suffixes
+     * @param keepStart true to keep the start of each string, false to keep the end
+     * @return The shortened set
+     */
+    private static Set<String> trim(Set<String> strings, boolean keepStart) {
+        Set<String> result = new TreeSet();
+        for (String s : strings) {
+            int n = Math.min(2, s.length());
+            result.add(keepStart ? s.substring(0, n) : s.substring(s.length() - n));
+        }
+        return result.size() <= MAX_SET_SIZE ? result : set("");
+    }
+
+    private static Set<String> cross(Set<String> first, Set<String> second) {
+        Set<String> result = new TreeSet();
+        for (String a : first) {
+            for (String b : second) {
+                result.add(a + b);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> union(Set<String> first, Set<String> second) {
+        Set<String> result = new TreeSet(first);
+        result.addAll(second);
+        return result;
+    }
+
+    private static Set<String> set(String s) {
+        return new TreeSet(Collections.singleton(s));
+    }
+}
@@ -0,0 +1,425 @@
+package grephy;
+
+import javax.xml.bind.ValidationException;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * TrigramIndex.java - On-disk index of which trigrams (sequences of three bytes) occur in which files of a directory.
+ * At query time the index is memory-mapped and a TrigramQuery picks out the only files that can contain a match.
+ *
+ * Index file layout (big-endian):
+ *   int MAGIC, int number of files
+ *   per file: int path length, UTF-8 path relative to the directory, long size, long last modified time
+ *   int number of trigrams
+ *   per trigram, in ascending order: int trigram, int index of its first posting, int number of postings
+ *   postings: int file numbers, ascending for each trigram
+ */
+public class TrigramIndex {
+    public static final String INDEX_FILE_NAME = ".grephy-index";
+    private static final int MAGIC = 0x47525849; // "GRXI"
+    private static final int DIRECTORY_ENTRY_SIZE = 12; // Bytes per trigram in the trigram directory
+
+    private final Path directory;
+    private final List<String> paths = new ArrayList(); // Indexed files, relative to the directory
+    private final List<long[]> versions = new ArrayList(); // Size and last modified time of each indexed file
+    private final Map<String, Integer> fileNumbers = new HashMap();
+    private final MappedByteBuffer buffer;
+    private final int numTrigrams;
+    private final int trigramsStart; // Offset of the trigram directory in the buffer
+    private final int postingsStart; // Offset of the postings in the buffer
+
+    /**
+     * Opens the index of a directory, mapping it into memory.
+     *
+     * @param directory Indexed directory
+     * @throws IOException if the index cannot be read or is not an index file
+     */
+    private TrigramIndex(Path directory) throws IOException {
+        this.directory = directory;
+        try (FileChannel channel = FileChannel.open(directory.resolve(INDEX_FILE_NAME), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a Grephy index: " + directory.resolve(INDEX_FILE_NAME));
+        }
+        int numFiles = buffer.getInt();
+        for (int i = 0; i < numFiles; i++) {
+            byte[] path = new byte[buffer.getInt()];
+            buffer.get(path);
+            paths.add(new String(path, StandardCharsets.UTF_8));
+            versions.add(new long[] {buffer.getLong(), buffer.getLong()});
+            fileNumbers.put(paths.get(i), i);
+        }
+        numTrigrams = buffer.getInt();
+        trigramsStart = buffer.position();
+        postingsStart = trigramsStart + numTrigrams * DIRECTORY_ENTRY_SIZE;
+    }
+
+    /**
+     * Opens the index of a directory if it has one.
+     *
+     * @param directory Directory to look in
+     * @return The index, or null if the directory has not been indexed
+     * @throws IOException if the index exists but cannot be read
+     */
+    public static TrigramIndex open(Path directory) throws IOException {
+        if (!Files.exists(directory.resolve(INDEX_FILE_NAME))) {
+            return null;
+        }
+        return new TrigramIndex(directory);
+    }
+
+    /**
+     * Determines which files of an indexed directory need to be searched for a query. Files that changed or appeared
+     * since the index was built are always included, so results are never missed because of a stale index.
+     *
+     * @param query Query that files containing a match satisfy
+     * @return Paths of the files to search, in order
+     * @throws IOException if the directory cannot be listed
+     */
+    public List<Path> candidates(TrigramQuery query) throws IOException {
+        int[] matching = evaluate(query);
+        Set<Integer> matchingFiles = new HashSet();
+        if (matching != null) {
+            for (int file : matching) {
+                matchingFiles.add(file);
+            }
+        }
+
+        List<Path> result = new ArrayList();
+        for (Path path : listFiles(directory)) {
+            Integer file = fileNumbers.get(relativeName(directory, path));
+            if (file == null || !isCurrent(file, path) || matching == null || matchingFiles.contains(file)) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the files to search in a directory, narrowed down by its index if it has one.
+     *
+     * @param directory Directory to search
+     * @param regex Regex being searched for
+     * @return Paths of the files to search, in order
+     * @throws IOException if the directory or its index cannot be read
+     */
+    public static List<Path> filesToSearch(Path directory, String regex) throws IOException {
+        TrigramIndex index = open(directory);
+        if (index == null) {
+            return listFiles(directory);
+        }
+        try {
+            return index.candidates(TrigramQuery.fromRegex(regex));
+        } catch (ValidationException e) {
+            return listFiles(directory); // Invalid regexes are reported by whoever compiles the DFA
+        }
+    }
+
+    /**
+     * Evaluates a query against the postings.
+     *
+     * @param query Query to evaluate
+     * @return Sorted numbers of the files satisfying the query, or null for all files
+     */
+    private int[] evaluate(TrigramQuery query) {
+        switch (query.op) {
+            case ALL:
+                return null;
+            case NONE:
+                return new int[0];
+            case TRIGRAM:
+                return postings(query.trigram);
+            case AND:
+                int[] intersection = null;
+                for (TrigramQuery q : query.operands) {
+                    int[] files = evaluate(q);
+                    if (intersection == null) {
+                        intersection = files;
+                    } else if (files != null) {
+                        intersection = intersect(intersection, files);
+                    }
+                }
+                return intersection;
+            default:
+                int[] union = new int[0];
+                for (TrigramQuery q : query.operands) {
+                    int[] files = evaluate(q);
+                    if (files == null) {
+                        return null;
+                    }
+                    union = union(union, files);
+                }
+                return union;
+        }
+    }
+
+    /**
+     * Looks up the files containing a trigram with a binary search of the trigram directory.
+     *
+     * @param trigram Trigram to look up
+     * @return Sorted numbers of the files containing it
+     */
+    private int[] postings(int trigram) {
+        int low = 0;
+        int high = numTrigrams - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = trigramsStart + mid * DIRECTORY_ENTRY_SIZE;
+            int value = buffer.getInt(entry);
+            if (value < trigram) {
+                low = mid + 1;
+            } else if (value > trigram) {
+                high = mid - 1;
+            } else {
+                int first = buffer.getInt(entry + 4);
+                int[] result = new int[buffer.getInt(entry + 8)];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = buffer.getInt(postingsStart + (first + i) * 4);
+                }
+                return result;
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * @param first Sorted file numbers
+     * @param second Sorted file numbers
+     * @return Sorted file numbers in both
+     */
+    private static int[] intersect(int[] first, int[] second) {
+        int[] result = new int[Math.min(first.length, second.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[n++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @param first Sorted file numbers
+     * @param second Sorted file numbers
+     * @return Sorted file numbers in either
+     */
+    private static int[] union(int[] first, int[] second) {
+        int[] result = new int[first.length + second.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length || j < second.length) {
+            if (j == second.length || i < first.length && first[i] < second[j]) {
+                result[n++] = first[i++];
+            } else if (i == first.length || second[j] < first[i]) {
+                result[n++] = second[j++];
+            } else {
+                result[n++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Determines if an indexed file is unchanged since it was indexed.
+     *
+     * @param file Number of the file in the index
+     * @param path Path of the file
+     * @return true if the size and modification time still match
+     * @throws IOException if the file's attributes cannot be read
+     */
+    private boolean isCurrent(int file, Path path) throws IOException {
+        return Arrays.equals(versions.get(file), version(path));
+    }
+
+    /**
+     * Builds the index of a directory, or brings an existing one up to date. Only files that are new or changed since
+     * the last update are read; the trigrams of unchanged files are carried over from the old index.
+     *
+     * @param directory Directory to index
+     * @return Number of files that had to be read
+     * @throws IOException if the directory cannot be read or the index cannot be written
+     */
+    public static int update(Path directory) throws IOException {
+        TrigramIndex old = open(directory);
+        List<Path> files = listFiles(directory);
+
+        List<String> names = new ArrayList();
+        List<long[]> fileVersions = new ArrayList();
+        Map<Integer, IntList> postings = new HashMap();
+        int[] renumbered = new int[old == null ? 0 : old.paths.size()]; // New numbers of unchanged old files
+        Arrays.fill(renumbered, -1);
+        BitSet trigrams = new BitSet(1 << 24);
+        int numRead = 0;
+
+        for (Path path : files) {
+            int file = names.size();
+            names.add(relativeName(directory, path));
+            fileVersions.add(version(path));
+
+            Integer oldFile = old == null ? null : old.fileNumbers.get(names.get(file));
+            if (oldFile != null && old.isCurrent(oldFile, path)) {
+                renumbered[oldFile] = file;
+                continue;
+            }
+
+            trigrams.clear();
+            readTrigrams(path, trigrams);
+            for (int t = trigrams.nextSetBit(0); t >= 0; t = trigrams.nextSetBit(t + 1)) {
+                postings.computeIfAbsent(t, k -> new IntList()).add(file);
+            }
+            numRead++;
+        }
+
+        // Carry over the postings of unchanged files
+        if (old != null) {
+            for (int i = 0; i < old.numTrigrams; i++) {
+                int trigram = old.buffer.getInt(old.trigramsStart + i * DIRECTORY_ENTRY_SIZE);
+                for (int oldFile : old.postings(trigram)) {
+                    if (renumbered[oldFile] != -1) {
+                        postings.computeIfAbsent(trigram, k -> new IntList()).add(renumbered[oldFile]);
+                    }
+                }
+            }
+        }
+
+        write(directory, names, fileVersions, postings);
+        return numRead;
+    }
+
+    /**
+     * Writes an index file, replacing the old one only once the new one is complete.
+     *
+     * @param directory Indexed directory
+     * @param names Relative paths of the files, by file number
+     * @param fileVersions Size and last modified time of the files, by file number
+     * @param postings File numbers containing each trigram
+     * @throws IOException if the index cannot be written
+     */
+    private static void write(Path directory, List<String> names, List<long[]> fileVersions,
+                              Map<Integer, IntList> postings) throws IOException {
+        Path temp = Files.createTempFile(directory, INDEX_FILE_NAME, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(fileVersions.get(i)[0]);
+                out.writeLong(fileVersions.get(i)[1]);
+            }
+
+            List<Integer> sortedTrigrams = new ArrayList(postings.keySet());
+            Collections.sort(sortedTrigrams);
+            out.writeInt(sortedTrigrams.size());
+            int first = 0;
+            for (Integer trigram : sortedTrigrams) {
+                out.writeInt(trigram);
+                out.writeInt(first);
+                out.writeInt(postings.get(trigram).size);
+                first += postings.get(trigram).size;
+            }
+            for (Integer trigram : sortedTrigrams) {
+                IntList files = postings.get(trigram);
+                Arrays.sort(files.values, 0, files.size);
+                for (int i = 0; i < files.size; i++) {
+                    out.writeInt(files.values[i]);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, directory.resolve(INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Records every trigram of a file that doesn't cross a line break (no match can), decompressing gzip files.
+     *
+     * @param path File to read
+     * @param trigrams Set that the trigrams are added to
+     * @throws IOException if the file cannot be read
+     */
+    private static void readTrigrams(Path path, BitSet trigrams) throws IOException {
+        try (InputStream in = DecompressingInputStream.isCompressed(path)
+                ? new DecompressingInputStream(path)
+                : Files.newInputStream(path)) {
+            byte[] chunk = new byte[64 * 1024];
+            int window = 0; // Last three bytes
+            int length = 0; // Bytes in the window since the last line break
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n') {
+                        length = 0;
+                        continue;
+                    }
+                    window = (window << 8 | chunk[i] & 0xff) & 0xffffff;
+                    if (++length >= 3) {
+                        trigrams.set(window);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the regular files in a directory and its subdirectories, leaving out the index itself.
+     *
+     * @param directory Directory to list
+     * @return Sorted paths of the files
+     * @throws IOException if the directory cannot be read
+     */
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith(INDEX_FILE_NAME))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String relativeName(Path directory, Path path) {
+        return directory.relativize(path).toString();
+    }
+
+    private static long[] version(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new long[] {attributes.size(), attributes.lastModifiedTime().toMillis()};
+    }
+
+    /**
+     * Growable list of ints, to avoid boxing every posting
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
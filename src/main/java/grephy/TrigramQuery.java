@@ -0,0 +1,231 @@
+package grephy;
+
+import javax.xml.bind.ValidationException;
+import java.util.*;
+
+/**
+ * TrigramQuery.java - A boolean query over trigrams (sequences of three bytes) that text has to satisfy in order to
+ * possibly contain a match of a regex. Used with a TrigramIndex to skip files that can't match.
+ */
+public class TrigramQuery {
+
+    /**
+     * Represents the different kinds of query
+     */
+    public enum OP {
+        ALL, // Anything satisfies the query
+        NONE, // Nothing satisfies the query
+        TRIGRAM, // Text must contain the trigram
+        AND, // Text must satisfy every operand
+        OR // Text must satisfy at least one operand
+    }
+
+    public static final TrigramQuery ALL = new TrigramQuery(OP.ALL, 0, Collections.emptyList());
+    public static final TrigramQuery NONE = new TrigramQuery(OP.NONE, 0, Collections.emptyList());
+
+    public final OP op;
+    public final int trigram; // For TRIGRAM queries: the three bytes packed into the low 24 bits
+    public final List<TrigramQuery> operands; // For AND and OR queries
+
+    private TrigramQuery(OP op, int trigram, List<TrigramQuery> operands) {
+        this.op = op;
+        this.trigram = trigram;
+        this.operands = operands;
+    }
+
+    /**
+     * Derives the trigram query for a regex from its structure.
+     *
+     * @param regex Regular expression string
+     * @return Query that every file containing a matching line satisfies
+     * @throws ValidationException if the regex is not formatted correctly
+     */
+    public static TrigramQuery fromRegex(String regex) throws ValidationException {
+        return RegexConverter.parse(regex, new TrigramExtractor()).toQuery();
+    }
+
+    /**
+     * @param trigram Three bytes packed into the low 24 bits
+     * @return Query requiring the trigram
+     */
+    public static TrigramQuery trigram(int trigram) {
+        return new TrigramQuery(OP.TRIGRAM, trigram, Collections.emptyList());
+    }
+
+    /**
+     * Creates a query requiring every trigram of a byte string.
+     *
+     * @param bytes Byte string, one byte per char
+     * @return AND of the trigrams, or ALL if the string is shorter than a trigram
+     */
+    public static TrigramQuery ofString(String bytes) {
+        TrigramQuery result = ALL;
+        for (int i = 0; i + 3 <= bytes.length(); i++) {
+            result = result.and(trigram(bytes.charAt(i) << 16 | bytes.charAt(i + 1) << 8 | bytes.charAt(i + 2)));
+        }
+        return result;
+    }
+
+    /**
+     * Creates a query requiring the trigrams of at least one of a set of byte strings.
+     *
+     * @param strings Byte strings, one byte per char
+     * @return OR of each string's query (NONE if the set is empty)
+     */
+    public static TrigramQuery anyOf(Collection<String> strings) {
+        TrigramQuery result = NONE;
+        for (String s : strings) {
+            result = result.or(ofString(s));
+        }
+        return result;
+    }
+
+    /**
+     * @param other Query to combine with
+     * @return Query satisfied when both are satisfied
+     */
+    public TrigramQuery and(TrigramQuery other) {
+        return combine(OP.AND, other, ALL, NONE);
+    }
+
+    /**
+     * @param other Query to combine with
+     * @return Query satisfied when either is satisfied
+     */
+    public TrigramQuery or(TrigramQuery other) {
+        return combine(OP.OR, other, NONE, ALL);
+    }
+
+    /**
+     * Combines two queries, simplifying away identities and flattening nested operations of the same kind.
+     *
+     * @param combined AND or OR
+     * @param other Query to combine with
+     * @param identity Query that has no effect on the operation
+     * @param absorbing Query that decides the operation on its own
+     * @return The combined query
+     */
+    private TrigramQuery combine(OP combined, TrigramQuery other, TrigramQuery identity, TrigramQuery absorbing) {
+        if (this == absorbing || other == absorbing) {
+            return absorbing;
+        }
+        if (this == identity || this.equals(other)) {
+            return other;
+        }
+        if (other == identity) {
+            return this;
+        }
+
+        LinkedHashSet<TrigramQuery> result = new LinkedHashSet();
+        for (TrigramQuery q : Arrays.asList(this, other)) {
+            if (q.op == combined) {
+                result.addAll(q.operands);
+            } else {
+                result.add(q);
+            }
+        }
+        if (combined == OP.AND) {
+            result = removeImplied(result);
+        }
+        if (result.size() == 1) {
+            return result.iterator().next();
+        }
+        return new TrigramQuery(combined, 0, Collections.unmodifiableList(new ArrayList(result)));
+    }
+
+    /**
+     * Simplifies the operands of an AND by taking the trigrams it already requires out of its ORs. An OR left with an
+     * alternative that requires nothing more is dropped altogether.
+     *
+     * @param operands Operands of the AND
+     * @return The simplified operands
+     */
+    private static LinkedHashSet<TrigramQuery> removeImplied(Collection<TrigramQuery> operands) {
+        Set<TrigramQuery> required = new HashSet();
+        for (TrigramQuery q : operands) {
+            if (q.op == OP.TRIGRAM) {
+                required.add(q);
+            }
+        }
+
+        LinkedHashSet<TrigramQuery> result = new LinkedHashSet();
+        for (TrigramQuery q : operands) {
+            if (q.op != OP.OR || required.isEmpty()) {
+                result.add(q);
+                continue;
+            }
+            TrigramQuery reduced = NONE;
+            for (TrigramQuery alternative : q.operands) {
+                reduced = reduced.or(without(alternative, required));
+            }
+            if (reduced.op == OP.AND) {
+                result.addAll(reduced.operands);
+            } else if (reduced != ALL) {
+                result.add(reduced);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param query Query to simplify
+     * @param required Trigrams that are already known to be present
+     * @return The query without the required trigrams
+     */
+    private static TrigramQuery without(TrigramQuery query, Set<TrigramQuery> required) {
+        if (query.op == OP.TRIGRAM) {
+            return required.contains(query) ? ALL : query;
+        }
+        if (query.op != OP.AND) {
+            return query;
+        }
+        TrigramQuery result = ALL;
+        for (TrigramQuery q : query.operands) {
+            if (!required.contains(q)) {
+                result = result.and(q);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TrigramQuery)) {
+            return false;
+        }
+        TrigramQuery other = (TrigramQuery) o;
+        return op == other.op && trigram == other.trigram && operands.equals(other.operands);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(op, trigram, operands);
+    }
+
+    /**
+     * Readable form of the query, e.g. ("err" "rro" "ror") | "war".
+     *
+     * @return The query as a string
+     */
+    @Override
+    public String toString() {
+        switch (op) {
+            case TRIGRAM:
+                StringBuilder s = new StringBuilder("\"");
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int b = trigram >> shift & 0xff;
+                    s.append(b > ' ' && b < 0x7f ? String.valueOf((char) b) : String.format("\\x%02X", b));
+                }
+                return s.append('"').toString();
+            case AND:
+            case OR:
+                StringJoiner joiner = new StringJoiner(op == OP.AND ? " " : " | ", "(", ")");
+                for (TrigramQuery q : operands) {
+                    joiner.add(q.toString());
+                }
+                return joiner.toString();
+            default:
+                return op.name();
+        }
+    }
+}
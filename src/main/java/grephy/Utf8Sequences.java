@@ -0,0 +1,103 @@
+package grephy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utf8Sequences.java - Converts ranges of Unicode code points into the equivalent sequences of UTF-8 byte ranges,
+ * so automata can read raw bytes instead of decoded characters.
+ */
+public class Utf8Sequences {
+    private static final int[] MAX_FOR_LENGTH = {0x7F, 0x7FF, 0xFFFF}; // Largest code point encoded in 1, 2, 3 bytes
+    private static final int SURROGATE_LOW = 0xD800;
+    private static final int SURROGATE_HIGH = 0xDFFF;
+
+    /**
+     * Splits a code point range into byte range sequences. A byte string is the UTF-8 encoding of a code point in
+     * the range exactly when it matches one of the sequences (each byte falling within its corresponding range).
+     * Surrogate code points have no UTF-8 encoding and are left out.
+     *
+     * @param low First code point in the range
+     * @param high Last code point in the range
+     * @return List of byte range sequences
+     */
+    public static List<List<SymbolRange>> fromCodePoints(int low, int high) {
+        List<List<SymbolRange>> result = new ArrayList();
+        split(low, high, result);
+        return result;
+    }
+
+    /**
+     * Recursively splits a range until the first and last code points encode to the same number of bytes and every
+     * byte position can vary independently of the others.
+     *
+     * @param low First code point in the range
+     * @param high Last code point in the range
+     * @param result List that finished sequences get added to
+     */
+    private static void split(int low, int high, List<List<SymbolRange>> result) {
+        if (low > high) {
+            return;
+        }
+
+        // Leave out surrogates
+        if (low <= SURROGATE_HIGH && high >= SURROGATE_LOW) {
+            split(low, SURROGATE_LOW - 1, result);
+            split(SURROGATE_HIGH + 1, high, result);
+            return;
+        }
+
+        // Split at the boundaries between encoded lengths
+        for (int max : MAX_FOR_LENGTH) {
+            if (low <= max && max < high) {
+                split(low, max, result);
+                split(max + 1, high, result);
+                return;
+            }
+        }
+
+        // Split until the continuation bytes cover either a full 0x80-0xBF range or a single value
+        for (int i = 1; i < 4; i++) {
+            int mask = (1 << (6 * i)) - 1; // Bits stored in the last i continuation bytes
+            if ((low & ~mask) != (high & ~mask)) {
+                if ((low & mask) != 0) {
+                    split(low, low | mask, result);
+                    split((low | mask) + 1, high, result);
+                    return;
+                }
+                if ((high & mask) != mask) {
+                    split(low, (high & ~mask) - 1, result);
+                    split(high & ~mask, high, result);
+                    return;
+                }
+            }
+        }
+
+        byte[] first = encode(low);
+        byte[] last = encode(high);
+        List<SymbolRange> sequence = new ArrayList();
+        for (int i = 0; i < first.length; i++) {
+            sequence.add(new SymbolRange(first[i] & 0xff, last[i] & 0xff));
+        }
+        result.add(sequence);
+    }
+
+    /**
+     * Encodes a single (non-surrogate) code point as UTF-8.
+     *
+     * @param codePoint Code point to encode
+     * @return UTF-8 bytes
+     */
+    public static byte[] encode(int codePoint) {
+        if (codePoint <= 0x7F) {
+            return new byte[] {(byte) codePoint};
+        } else if (codePoint <= 0x7FF) {
+            return new byte[] {(byte) (0xC0 | codePoint >> 6), (byte) (0x80 | codePoint & 0x3F)};
+        } else if (codePoint <= 0xFFFF) {
+            return new byte[] {(byte) (0xE0 | codePoint >> 12), (byte) (0x80 | codePoint >> 6 & 0x3F),
+                    (byte) (0x80 | codePoint & 0x3F)};
+        }
+        return new byte[] {(byte) (0xF0 | codePoint >> 18), (byte) (0x80 | codePoint >> 12 & 0x3F),
+                (byte) (0x80 | codePoint >> 6 & 0x3F), (byte) (0x80 | codePoint & 0x3F)};
+    }
+}
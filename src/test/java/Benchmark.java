@@ -0,0 +1,89 @@
+import grephy.CompiledDFA;
+import grephy.DFA;
+import grephy.LineAutomaton;
+import grephy.LineMatcher;
+import grephy.NFA;
+import grephy.RegexConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares the throughput of DFAs run as generated bytecode (CompiledDFA) with the same DFAs run from their transition
+ * table, searching a generated log with LineMatcher. Timings depend on the machine and what else it is doing, so this
+ * is run by hand rather than as a test:
+ *
+ *   java -cp target/classes:target/test-classes:LOG4J-JAR Benchmark
+ */
+public class Benchmark {
+    private static final int LOG_LINES = 100000;
+    private static final int RUNS = 5; // Best of this many runs is kept for each matcher
+
+    static final String[] REGEXES = {"2026.*", ".*ERROR.*", ".*user1[0-9]*2 .*",
+            ".*(fetched|stored) /api/[a-z]+/[0-9]+ in [0-9]+ms.*"};
+
+    /**
+     * Generates a log with the kind of lines the patterns are written for.
+     *
+     * @return The log as UTF-8
+     */
+    static byte[] generateLog() {
+        Random random = new Random(36);
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "ERROR"};
+        String[] actions = {"fetched", "stored", "deleted"};
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < LOG_LINES; i++) {
+            log.append(String.format("2026-10-%02d 12:%02d %s user%d %s /api/item/%d in %dms%s\n",
+                    1 + random.nextInt(28), random.nextInt(60), levels[random.nextInt(levels.length)],
+                    random.nextInt(1000), actions[random.nextInt(actions.length)], random.nextInt(100000),
+                    random.nextInt(1000), random.nextInt(10) == 0 ? " (café ☕)" : ""));
+        }
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Searches the log and measures how long it takes.
+     *
+     * @param automaton Automaton to match lines with
+     * @param log Input to search
+     * @return Best time in nanoseconds
+     * @throws Exception if the search fails
+     */
+    private static long time(LineAutomaton automaton, byte[] log) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            out.reset();
+            long start = System.nanoTime();
+            new LineMatcher(automaton, out).search(new ByteArrayInputStream(log));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] log = generateLog();
+        // The first round only warms up the JIT, so the first matchers measured aren't run in the interpreter
+        for (int round = 0; round < 2; round++) {
+            for (String regex : REGEXES) {
+                NFA nfa = RegexConverter.nfaFromRegex(regex);
+                nfa.removeEpsilons();
+                DFA dfa = new DFA(nfa);
+                CompiledDFA compiledDFA = CompiledDFA.compile(dfa);
+
+                long tableTime = time(dfa, log);
+                long compiledTime = compiledDFA != null ? time(compiledDFA, log) : 0;
+                if (round == 0) {
+                    continue;
+                }
+                System.out.println(String.format("%s: table %.0f MB/s", regex, log.length * 1e3 / tableTime));
+                if (compiledDFA != null) {
+                    System.out.println(String.format("%s: compiled %.0f MB/s, %.2fx the table", regex,
+                            log.length * 1e3 / compiledTime, (double) tableTime / compiledTime));
+                }
+            }
+        }
+    }
+}
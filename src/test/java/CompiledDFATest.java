@@ -0,0 +1,36 @@
+import grephy.CompiledDFA;
+import grephy.DFA;
+import grephy.LineMatcher;
+import grephy.NFA;
+import grephy.RegexConverter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Checks that DFAs run as generated bytecode (CompiledDFA) write the same lines as the same DFAs run from their
+ * transition table, on the log that Benchmark measures their throughput with.
+ */
+public class CompiledDFATest {
+    @Test
+    public void itMatchesTheSameLinesAsTheTable() throws Exception {
+        byte[] log = Benchmark.generateLog();
+        for (String regex : Benchmark.REGEXES) {
+            NFA nfa = RegexConverter.nfaFromRegex(regex);
+            nfa.removeEpsilons();
+            DFA dfa = new DFA(nfa);
+            CompiledDFA compiledDFA = CompiledDFA.compile(dfa);
+            Assert.assertNotNull(regex, compiledDFA);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            new LineMatcher(dfa, expected).search(new ByteArrayInputStream(log));
+            new LineMatcher(compiledDFA, actual).search(new ByteArrayInputStream(log));
+
+            Assert.assertTrue(regex + " matches nothing", expected.size() > 0);
+            Assert.assertArrayEquals(regex, expected.toByteArray(), actual.toByteArray());
+        }
+    }
+}
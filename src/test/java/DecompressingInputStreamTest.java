@@ -0,0 +1,140 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+import grephy.DecompressingInputStream;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+public class DecompressingInputStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes gzip-compressed data to a new file.
+     *
+     * @param data Uncompressed data
+     * @return The compressed file
+     * @throws IOException if the file cannot be written
+     */
+    private Path gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+        Path path = folder.newFile("input.gz").toPath();
+        Files.write(path, compressed.toByteArray());
+        return path;
+    }
+
+    /**
+     * Reads a stream to its end in small, uneven reads.
+     *
+     * @param in Stream to read
+     * @return The bytes read
+     * @throws IOException if reading fails
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void itDecompressesWhatWasCompressed() throws IOException {
+        // Several of the decompressor's buffers, so the reader has to wait on the queue
+        byte[] data = new byte[300000];
+        Random random = new Random(26);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) "test\ntast\né".charAt(random.nextInt(11));
+        }
+        Path path = gzip(data);
+
+        try (DecompressingInputStream in = new DecompressingInputStream(path)) {
+            Assert.assertArrayEquals(readAll(in), data);
+            // The end of the stream stays the end
+            Assert.assertEquals(in.read(), -1);
+            Assert.assertEquals(in.read(new byte[10], 0, 10), -1);
+        }
+    }
+
+    @Test
+    public void itDecompressesAnEmptyFile() throws IOException {
+        try (DecompressingInputStream in = new DecompressingInputStream(gzip(new byte[0]))) {
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test
+    public void itReportsTruncatedInput() throws IOException {
+        byte[] data = new byte[200000];
+        new Random(26).nextBytes(data); // Incompressible, so the compressed file is long enough to cut in half
+        Path path = gzip(data);
+        byte[] compressed = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(compressed, compressed.length / 2));
+
+        try (DecompressingInputStream in = new DecompressingInputStream(path)) {
+            readAll(in);
+            Assert.fail("Truncated input was read to the end");
+        } catch (IOException e) {
+            // The decompressor's failure is passed on to the reader
+        }
+    }
+
+    @Test
+    public void itReportsCorruptInput() throws IOException {
+        Path path = gzip("test\ntast\n".getBytes("UTF-8"));
+        byte[] compressed = Files.readAllBytes(path);
+        compressed[compressed.length - 5] ^= 0xff; // Damage the checksum in the trailer
+        Files.write(path, compressed);
+
+        try (DecompressingInputStream in = new DecompressingInputStream(path)) {
+            readAll(in);
+            Assert.fail("Corrupt input was read to the end");
+        } catch (IOException e) {
+            // The decompressor's failure is passed on to the reader
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void itRejectsInputThatIsNotGzip() throws IOException {
+        Path path = folder.newFile("plain.gz").toPath();
+        Files.write(path, "test\n".getBytes("UTF-8"));
+        new DecompressingInputStream(path).close();
+    }
+
+    @Test
+    public void itClosesInputThatIsNotGzip() throws IOException {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        Assume.assumeTrue(os instanceof UnixOperatingSystemMXBean); // Open files can only be counted on Unix
+        Path path = folder.newFile("plain.gz").toPath();
+        Files.write(path, "test\n".getBytes("UTF-8"));
+
+        long openFiles = ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new DecompressingInputStream(path).close();
+                Assert.fail("Input that is not gzip was opened");
+            } catch (IOException e) {
+                // The file has to be closed again before this is thrown
+            }
+        }
+        // Some slack for files opened by other threads in the meantime
+        Assert.assertTrue(((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() < openFiles + 10);
+    }
+}
@@ -0,0 +1,149 @@
+import grephy.DFA;
+import grephy.FileFollower;
+import grephy.LineMatcher;
+import grephy.NFA;
+import grephy.RegexConverter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileFollowerTest {
+    private static final long TIMEOUT_MILLIS = 10000; // Longest wait for the follower to catch up with a write
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private ByteArrayOutputStream out;
+    private Thread thread;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("test.log");
+        out = new ByteArrayOutputStream();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Follows the file on another thread, writing lines that match .*te+st.* to out.
+     *
+     * @throws Exception if the regex cannot be converted
+     */
+    private void startFollowing() throws Exception {
+        NFA nfa = RegexConverter.nfaFromRegex(".*te+st.*");
+        nfa.removeEpsilons();
+        FileFollower follower = new FileFollower(path, new LineMatcher(new DFA(nfa), out));
+        thread = new Thread(() -> {
+            try {
+                follower.follow();
+            } catch (IOException e) {
+                // Interrupting a read closes the file
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Adds text to the end of a file, creating it if it doesn't exist.
+     *
+     * @param file File to write to
+     * @param text Text to append
+     * @throws IOException if the file cannot be written
+     */
+    private static void append(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Waits for the follower to have written the expected output.
+     *
+     * @param expected Everything the follower should have written so far
+     * @throws Exception if the output is different once the timeout is reached
+     */
+    private void awaitOutput(String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!out.toString("UTF-8").equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(out.toString("UTF-8"), expected);
+    }
+
+    @Test
+    public void itMatchesAppendedLines() throws Exception {
+        append(path, "test\ntast\n");
+        startFollowing();
+        awaitOutput("test\n");
+
+        append(path, "tost\nteest\n");
+        awaitOutput("test\nteest\n");
+    }
+
+    @Test
+    public void itMatchesLinesSplitAcrossWrites() throws Exception {
+        append(path, "test\nte");
+        startFollowing();
+        awaitOutput("test\n"); // The start of the next line has been read too
+
+        append(path, "est\n");
+        awaitOutput("test\nteest\n");
+    }
+
+    @Test
+    public void itStartsOverWhenTruncated() throws Exception {
+        append(path, "test\ntast\ntost\n");
+        startFollowing();
+        awaitOutput("test\n");
+
+        // Shorter than before, so the follower can't mistake it for an append
+        Files.write(path, "teest\n".getBytes(StandardCharsets.UTF_8));
+        awaitOutput("test\nteest\n");
+    }
+
+    @Test
+    public void itStartsOverWhenTruncatedAndRewrittenBetweenChecks() throws Exception {
+        append(path, "test\ntast\n");
+        startFollowing();
+        awaitOutput("test\n");
+
+        // Longer than before by the time the follower looks again, like after copy-truncate log rotation
+        Files.write(path, "teest\ntost\ntast\n".getBytes(StandardCharsets.UTF_8));
+        awaitOutput("test\nteest\n");
+
+        append(path, "teeest\n");
+        awaitOutput("test\nteest\nteeest\n");
+    }
+
+    @Test
+    public void itSwitchesToTheNewFileWhenRotated() throws Exception {
+        append(path, "test\n");
+        startFollowing();
+        awaitOutput("test\n");
+
+        Path rotated = path.resolveSibling("test.log.1");
+        Files.move(path, rotated);
+        append(rotated, "teest\n"); // Still read, since the follower has the old file open until a new one appears
+        append(path, "teeest\n");
+        awaitOutput("test\nteest\nteeest\n");
+
+        append(path, "teeeest\n");
+        awaitOutput("test\nteest\nteeest\nteeeest\n");
+    }
+}
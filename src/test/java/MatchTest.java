@@ -1,20 +1,36 @@
+import grephy.BitParallelNFA;
+import grephy.CompiledDFA;
+import grephy.DFA;
+import grephy.LineMatcher;
 import grephy.NFA;
 import grephy.RegexConverter;
+import grephy.TrigramIndex;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.xml.bind.ValidationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class MatchTest {
-    private final Character[] alphabetArr = {'t', 'e', 's', 't'};
     private final String[] inputLinesArr = {"test", "tast", "teest", "tost"};
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void itDoesSimpleMatch() throws ValidationException {
         RegexConverter regexConverter = new RegexConverter();
-        NFA nfa = regexConverter.nfaFromRegex("test", Arrays.asList(alphabetArr));
+        NFA nfa = regexConverter.nfaFromRegex("test");
 
         ArrayList<String> acceptedList = new ArrayList();
 
@@ -31,7 +47,7 @@ public class MatchTest {
     @Test
     public void itDoesMultipleMatch() throws ValidationException {
         RegexConverter regexConverter = new RegexConverter();
-        NFA nfa = regexConverter.nfaFromRegex("te*st", Arrays.asList(alphabetArr));
+        NFA nfa = regexConverter.nfaFromRegex("te*st");
 
         ArrayList<String> acceptedList = new ArrayList();
 
@@ -49,7 +65,7 @@ public class MatchTest {
     @Test
     public void itDoesNegativeMatch() throws ValidationException {
         RegexConverter regexConverter = new RegexConverter();
-        NFA nfa = regexConverter.nfaFromRegex("tist", Arrays.asList(alphabetArr));
+        NFA nfa = regexConverter.nfaFromRegex("tist");
 
         ArrayList<String> acceptedList = new ArrayList();
 
@@ -61,4 +77,206 @@ public class MatchTest {
 
         Assert.assertEquals(acceptedList.size(), 0);
     }
+
+    @Test
+    public void itDoesCharacterClassMatch() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("t[a-e]+s.");
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+
+        ArrayList<String> acceptedList = new ArrayList();
+
+        for (String line : inputLinesArr) {
+            if (dfa.accepts(line)) {
+                acceptedList.add(line);
+            }
+        }
+
+        Assert.assertEquals(acceptedList.size(), 3);
+        Assert.assertEquals(acceptedList.get(0), "test");
+        Assert.assertEquals(acceptedList.get(1), "tast");
+        Assert.assertEquals(acceptedList.get(2), "teest");
+    }
+
+    @Test
+    public void itDoesBoundedRepetitionMatch() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("(t[^a]?){1}e{1,2}st?");
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+
+        ArrayList<String> acceptedList = new ArrayList();
+
+        for (String line : inputLinesArr) {
+            if (dfa.accepts(line)) {
+                acceptedList.add(line);
+            }
+        }
+
+        Assert.assertEquals(acceptedList.size(), 2);
+        Assert.assertEquals(acceptedList.get(0), "test");
+        Assert.assertEquals(acceptedList.get(1), "teest");
+    }
+
+    @Test
+    public void itMatchesBracesThatAreNotRepetitions() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex(".*{\"level\":\"(warn|error)\"}{1,2}.*");
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+
+        Assert.assertTrue(dfa.accepts("{\"level\":\"error\"}"));
+        Assert.assertTrue(dfa.accepts("log {\"level\":\"warn\"}}"));
+        Assert.assertFalse(dfa.accepts("{\"level\":\"info\"}"));
+
+        nfa = regexConverter.nfaFromRegex("t{e,}{x}");
+        Assert.assertTrue(nfa.accepts("t{e,}{x}"));
+        Assert.assertFalse(nfa.accepts("te"));
+    }
+
+    @Test(expected = ValidationException.class)
+    public void itRejectsHugeRepetitions() throws ValidationException {
+        new RegexConverter().nfaFromRegex("a{100000000}");
+    }
+
+    @Test
+    public void itRejectsNestedRepetitionsThatAreTooBigTogether() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        Assert.assertEquals(regexConverter.nfaFromRegex("(a{1000}){99}").states.size(), 99001);
+
+        for (String regex : new String[] {"(a{1000}){100}", "((a{1000}){1000}){1000}"}) {
+            try {
+                regexConverter.nfaFromRegex(regex);
+                Assert.fail(regex + " was accepted");
+            } catch (ValidationException e) {
+                // Rejected before any copies are made
+            }
+        }
+    }
+
+    @Test
+    public void itDoesUnicodeMatch() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("t[é-ë]?.st");
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+
+        ArrayList<String> acceptedList = new ArrayList();
+
+        for (String line : new String[] {"tést", "têëst", "t\uD83D\uDE00st", "tést\u00A0", "t\u00E9\u00E9\u00E9st"}) {
+            if (dfa.accepts(line)) {
+                acceptedList.add(line);
+            }
+        }
+
+        Assert.assertEquals(acceptedList.size(), 3);
+        Assert.assertEquals(acceptedList.get(0), "tést");
+        Assert.assertEquals(acceptedList.get(1), "têëst");
+        Assert.assertEquals(acceptedList.get(2), "t\uD83D\uDE00st");
+    }
+
+    @Test
+    public void itDoesBitParallelMatch() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("t(e|é)*[^o]?st");
+        nfa.removeEpsilons();
+        BitParallelNFA bitParallelNFA = BitParallelNFA.fromNFA(nfa);
+
+        ArrayList<String> acceptedList = new ArrayList();
+
+        for (String line : new String[] {"test", "tast", "teést", "tost", "tst"}) {
+            if (bitParallelNFA.accepts(line)) {
+                acceptedList.add(line);
+            }
+        }
+
+        Assert.assertEquals(acceptedList.size(), 4);
+        Assert.assertEquals(acceptedList.get(0), "test");
+        Assert.assertEquals(acceptedList.get(1), "tast");
+        Assert.assertEquals(acceptedList.get(2), "teést");
+        Assert.assertEquals(acceptedList.get(3), "tst");
+    }
+
+    @Test
+    public void itDoesCompiledDFAMatch() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("t(e|é)*[^o]?st.*");
+        nfa.removeEpsilons();
+        CompiledDFA compiledDFA = CompiledDFA.compile(new DFA(nfa));
+
+        ArrayList<String> acceptedList = new ArrayList();
+
+        for (String line : new String[] {"test", "tast", "teést", "tost", "tst", "téésts", "teé"}) {
+            if (compiledDFA.accepts(line)) {
+                acceptedList.add(line);
+            }
+        }
+
+        Assert.assertEquals(acceptedList.size(), 5);
+        Assert.assertEquals(acceptedList.get(0), "test");
+        Assert.assertEquals(acceptedList.get(1), "tast");
+        Assert.assertEquals(acceptedList.get(2), "teést");
+        Assert.assertEquals(acceptedList.get(3), "tst");
+        Assert.assertEquals(acceptedList.get(4), "téésts");
+
+        // DFAs too big for the JIT are left to the table
+        nfa = regexConverter.nfaFromRegex("(a|b)*a(a|b){10}");
+        nfa.removeEpsilons();
+        Assert.assertNull(CompiledDFA.compile(new DFA(nfa)));
+    }
+
+    @Test
+    public void itBuildsTheSameDFAInParallel() throws ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        for (String regex : new String[] {"(a|b)*a(a|b){9}", ".*(te|[é0-9])[^x]{6}"}) {
+            NFA nfa = regexConverter.nfaFromRegex(regex);
+            nfa.removeEpsilons();
+
+            DFA sequential = new DFA(nfa, false);
+            DFA parallel = new DFA(nfa, true);
+
+            Assert.assertTrue(sequential.states.size() > 256);
+            Assert.assertEquals(parallel.toDotFile(), sequential.toDotFile());
+        }
+    }
+
+    @Test
+    public void itPrintsLineNumbersAndContext() throws IOException, ValidationException {
+        RegexConverter regexConverter = new RegexConverter();
+        NFA nfa = regexConverter.nfaFromRegex("te*st");
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+
+        String input = "a\r\nb\nc\ntest\nd\ne\nf\ng\nteest\ntest\nh\ni";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LineMatcher matcher = new LineMatcher(dfa, out, "file");
+        matcher.setLineNumbers(true);
+        matcher.setContext(2, 1);
+        matcher.search(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(out.toString("UTF-8"), "file-2-b\nfile-3-c\nfile:4:test\nfile-5-d\n--\n"
+                + "file-7-f\nfile-8-g\nfile:9:teest\nfile:10:test\nfile-11-h\n");
+    }
+
+    @Test
+    public void itSkipsFilesWithoutTrigrams() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Files.write(directory.resolve("a.txt"), Arrays.asList("this is a test"));
+        Files.write(directory.resolve("b.txt"), Arrays.asList("tast", "tost"));
+        Files.write(directory.resolve("c.txt"), Arrays.asList("teest"));
+        TrigramIndex.update(directory);
+
+        List<Path> candidates = TrigramIndex.filesToSearch(directory, ".*te+st.*");
+
+        Assert.assertEquals(candidates.size(), 2);
+        Assert.assertEquals(candidates.get(0), directory.resolve("a.txt"));
+        Assert.assertEquals(candidates.get(1), directory.resolve("c.txt"));
+
+        // Files changed since the index was built are always searched
+        Files.write(directory.resolve("b.txt"), Arrays.asList("tast", "tost", "test"));
+        candidates = TrigramIndex.filesToSearch(directory, ".*te+st.*");
+
+        Assert.assertEquals(candidates.size(), 3);
+    }
 }
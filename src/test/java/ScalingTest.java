@@ -0,0 +1,274 @@
+import grephy.BitParallelNFA;
+import grephy.DFA;
+import grephy.LineMatcher;
+import grephy.NFA;
+import grephy.RegexConverter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.bind.ValidationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that the engines stay within their expected complexity on pathological inputs. Each case is run at doubling
+ * sizes, the growth exponent of time and allocation is fitted on a log-log scale, and the test fails if it is well
+ * above the expected one. Matches are cross-checked against java.util.regex.
+ */
+public class ScalingTest {
+    private static final int[] DOUBLINGS = {0, 1, 2, 3, 4}; // Each case runs at size base * 2^d
+    private static final double TIME_TOLERANCE = 0.5; // Timing is noisy, so allow some slack on the exponent
+    private static final double ALLOCATION_TOLERANCE = 0.3;
+    private static final int RUNS = 3; // Best of this many runs is kept for each size
+
+    private final Random random = new Random(33);
+
+    /**
+     * A piece of work whose cost is measured, prepared outside of the measurement.
+     */
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /**
+     * Measures work at growing sizes and fails if its cost grows faster than expected.
+     *
+     * @param name Description of the case for failure messages
+     * @param base Smallest size
+     * @param expected Expected growth exponent, e.g. 1 for linear
+     * @param work Prepares the work for a size
+     * @throws Exception if the work fails
+     */
+    private void assertScaling(String name, int base, double expected, IntFunction<Work> work) throws Exception {
+        double[] sizes = new double[DOUBLINGS.length];
+        double[] times = new double[DOUBLINGS.length];
+        double[] allocations = new double[DOUBLINGS.length];
+
+        work.apply(base).run(); // Warm up the JIT
+        for (int i = 0; i < DOUBLINGS.length; i++) {
+            int size = base << DOUBLINGS[i];
+            sizes[i] = size;
+            times[i] = Double.MAX_VALUE;
+            allocations[i] = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                Work w = work.apply(size);
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                w.run();
+                times[i] = Math.min(times[i], System.nanoTime() - start);
+                allocations[i] = Math.min(allocations[i], Math.max(1, allocatedBytes() - allocated));
+            }
+        }
+
+        double timeExponent = growthExponent(sizes, times);
+        double allocationExponent = growthExponent(sizes, allocations);
+        Assert.assertTrue(name + ": time grows as n^" + timeExponent, timeExponent <= expected + TIME_TOLERANCE);
+        Assert.assertTrue(name + ": allocation grows as n^" + allocationExponent,
+                allocationExponent <= expected + ALLOCATION_TOLERANCE);
+    }
+
+    /**
+     * Fits cost = c * size^k by least squares on a log-log scale.
+     *
+     * @param sizes Input sizes
+     * @param costs Measured cost at each size
+     * @return The exponent k
+     */
+    private static double growthExponent(double[] sizes, double[] costs) {
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            meanX += Math.log(sizes[i]) / sizes.length;
+            meanY += Math.log(costs[i]) / sizes.length;
+        }
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            double dx = Math.log(sizes[i]) - meanX;
+            covariance += dx * (Math.log(costs[i]) - meanY);
+            variance += dx * dx;
+        }
+        return covariance / variance;
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, or 0 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Checks that every engine agrees with java.util.regex on whether a string matches a regex.
+     *
+     * @param regex Regex in syntax that both understand
+     * @param inputs Strings to match
+     * @throws ValidationException if the regex is invalid
+     */
+    private static void assertSameMatches(String regex, String... inputs) throws ValidationException {
+        NFA nfa = RegexConverter.nfaFromRegex(regex);
+        NFA epsilonFree = RegexConverter.nfaFromRegex(regex);
+        epsilonFree.removeEpsilons();
+        DFA dfa = new DFA(epsilonFree);
+        BitParallelNFA bitParallelNFA = BitParallelNFA.fromNFA(epsilonFree);
+        Pattern pattern = Pattern.compile(regex, Pattern.DOTALL);
+
+        for (String input : inputs) {
+            boolean expected = pattern.matcher(input).matches();
+            Assert.assertEquals(regex + " NFA on " + input, nfa.accepts(input), expected);
+            Assert.assertEquals(regex + " epsilon-free NFA on " + input, epsilonFree.accepts(input), expected);
+            Assert.assertEquals(regex + " DFA on " + input, dfa.accepts(input), expected);
+            if (bitParallelNFA != null) {
+                Assert.assertEquals(regex + " bit-parallel NFA on " + input, bitParallelNFA.accepts(input), expected);
+            }
+        }
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            result.append(s);
+        }
+        return result.toString();
+    }
+
+    private String randomString(String alphabet, int length) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void itMatchesNestedStarsInLinearTime() throws Exception {
+        assertSameMatches("(a*)*b", "", "b", "ab", "aaaaaaaaaaaaaaab", "aaaaaaaaaaaaaaa");
+        assertSameMatches("((a|aa)*)*c", "aaaaaaaaaaac", "aaaaaaaaaaaa");
+
+        NFA nfa = RegexConverter.nfaFromRegex("(a*)*b");
+        assertScaling("NFA (a*)*b", 2000, 1, n -> {
+            String input = repeat("a", n); // No b, so every way of splitting up the a's fails
+            return () -> Assert.assertFalse(nfa.accepts(input));
+        });
+
+        NFA epsilonFree = RegexConverter.nfaFromRegex("((a|aa)*)*c");
+        epsilonFree.removeEpsilons();
+        DFA dfa = new DFA(epsilonFree);
+        assertScaling("DFA ((a|aa)*)*c", 100000, 1, n -> {
+            String input = repeat("a", n);
+            return () -> Assert.assertFalse(dfa.accepts(input));
+        });
+    }
+
+    @Test
+    public void itBuildsExponentialDFAsInLinearTimePerState() throws Exception {
+        for (int k = 0; k < 4; k++) {
+            String regex = "(a|b)*a(a|b){" + k + "}";
+            assertSameMatches(regex, randomString("ab", 3), randomString("ab", 5), randomString("ab", 8), "a", "b");
+        }
+
+        // The minimal DFA needs 2^(k+1) states (plus a dead state for other bytes), so the cost is measured against
+        // that, not k. Each subset holds about k NFA states, so n log n is expected.
+        assertScaling("DFA construction for (a|b)*a(a|b){k}", 64, 1.3, states -> {
+            int k = Integer.numberOfTrailingZeros(states) - 1;
+            return () -> {
+                NFA nfa = RegexConverter.nfaFromRegex("(a|b)*a(a|b){" + k + "}");
+                nfa.removeEpsilons();
+                Assert.assertEquals(new DFA(nfa).states.size(), states + 1);
+            };
+        });
+
+        // Simulating the NFA doesn't have to pay for the expansion at all
+        assertScaling("NFA simulation of (a|b)*a(a|b){k}", 16, 1, k -> {
+            String input = randomString("ab", 2000);
+            return () -> {
+                NFA nfa = RegexConverter.nfaFromRegex("(a|b)*a(a|b){" + k + "}");
+                nfa.removeEpsilons();
+                nfa.accepts(input);
+            };
+        });
+    }
+
+    @Test
+    public void itCompilesLongLiteralsInLinearTime() throws Exception {
+        String literal = randomString("abcdefghij", 200);
+        assertSameMatches(literal, literal, literal.substring(1), literal + "a", literal.replace('a', 'b'));
+
+        assertScaling("Compiling a long literal", 1000, 1, n -> {
+            String regex = randomString("abcdefghij", n);
+            return () -> {
+                NFA nfa = RegexConverter.nfaFromRegex(regex);
+                nfa.removeEpsilons();
+                Assert.assertTrue(new DFA(nfa).accepts(regex));
+            };
+        });
+    }
+
+    @Test
+    public void itMatchesLongLinesInLinearTime() throws Exception {
+        String regex = ".*x(y|z)+x.*";
+        String line = randomString("abcxyz", 5000);
+        assertSameMatches(regex, line, line.replace("x", ""));
+
+        NFA nfa = RegexConverter.nfaFromRegex(regex);
+        nfa.removeEpsilons();
+        DFA dfa = new DFA(nfa);
+        BitParallelNFA bitParallelNFA = BitParallelNFA.fromNFA(nfa);
+        assertScaling("LineMatcher on one long line", 1 << 18, 1, n -> {
+            byte[] input = (repeat("a", n) + "xyx\n").getBytes(StandardCharsets.UTF_8);
+            return () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new LineMatcher(dfa, out).search(new ByteArrayInputStream(input));
+                Assert.assertEquals(out.size(), input.length);
+            };
+        });
+        assertScaling("Bit-parallel NFA on one long line", 1 << 16, 1, n -> {
+            byte[] input = (repeat("a", n) + "xyx").getBytes(StandardCharsets.UTF_8);
+            return () -> Assert.assertTrue(bitParallelNFA.accepts(input, 0, input.length));
+        });
+    }
+
+    @Test
+    public void itCompilesHugeAlphabetsInLinearTime() throws Exception {
+        assertSameMatches("[^a-z]+é[α-ω一-鿿]*", "ABCé", "Aéαβ中文", "aé", "Aéa", "😀é");
+
+        assertScaling("Compiling a class of many scattered code points", 500, 1, n -> {
+            StringBuilder regex = new StringBuilder("[");
+            for (int i = 0; i < n; i++) {
+                regex.appendCodePoint(0x100 + 3 * i * (0x10000 / n / 3 + 1) % 0xD000); // Spread over the BMP
+            }
+            regex.append("]+");
+            return () -> {
+                NFA nfa = RegexConverter.nfaFromRegex(regex.toString());
+                nfa.removeEpsilons();
+                Assert.assertTrue(new DFA(nfa).accepts(regex.substring(1, 3)));
+            };
+        });
+    }
+
+    @Test
+    public void itCompilesLongAlternationsInLinearTime() throws Exception {
+        assertSameMatches("foo|bar|baz|qux", "foo", "baz", "ba", "fooqux");
+
+        assertScaling("Compiling a union of many words", 250, 1.2, n -> {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                regex.append(i == 0 ? "" : "|").append(randomString("abcdefgh", 8));
+            }
+            return () -> {
+                NFA nfa = RegexConverter.nfaFromRegex(regex.toString());
+                nfa.removeEpsilons();
+                Assert.assertTrue(new DFA(nfa).accepts(regex.substring(0, 8)));
+            };
+        });
+    }
+}
@@ -0,0 +1,126 @@
+import grephy.SearchServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SearchServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SearchServer server;
+    private Thread thread;
+    private String token;
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root").toPath();
+        Files.write(root.resolve("a.txt"), Arrays.asList("test", "tast", "teest", "tost"));
+        Files.write(folder.getRoot().toPath().resolve("secret.txt"), Arrays.asList("test"));
+
+        Path tokenFile = folder.getRoot().toPath().resolve("server.token");
+        server = new SearchServer(0, 2, Collections.singletonList(root), tokenFile);
+        token = Files.readAllLines(tokenFile).get(0);
+        thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                // Reported by the requests failing
+            }
+        });
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        thread.join();
+    }
+
+    /**
+     * Sends a request to the server and reads the whole reply.
+     *
+     * @param lines Lines of the request, not including the empty line that ends it
+     * @return The reply
+     * @throws IOException if the connection fails
+     */
+    private String request(String... lines) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write((String.join("\n", lines) + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                reply.write(buffer, 0, n);
+            }
+            return reply.toString("UTF-8");
+        }
+    }
+
+    @Test
+    public void itSearchesAndCachesTheDFA() throws IOException {
+        String file = root.resolve("a.txt").toString();
+        Assert.assertEquals(request(token, "te+st", file), "test\nteest\n");
+        Assert.assertEquals(server.getNumCompiled(), 1);
+
+        // Same regex with options, answered from the cache
+        Assert.assertEquals(request(token, "--line-number", "-B", "1", "te+st", file), "1:test\n2-tast\n3:teest\n");
+        Assert.assertEquals(server.getNumCompiled(), 1);
+    }
+
+    @Test
+    public void itRepliesWithErrors() throws IOException {
+        String file = root.resolve("a.txt").toString();
+        Assert.assertEquals(request(token, "te(st", file), "Invalid regex: Mismatched parentheses in regex.\n");
+        Assert.assertEquals(request(token, "--word-regexp", "test", file), "Usage: [--line-number] [-A NUM] [-B NUM] "
+                + "[-C NUM] [--] REGEX FILE...\n");
+        Assert.assertEquals(request(token, "(a|b)*a(a|b){80}", file), "Regex too complex: its DFA has more than 4096 "
+                + "states.\n");
+        // Nested repetitions that would exhaust the heap are rejected before they are expanded
+        Assert.assertEquals(request(token, "((a{1000}){1000}){1000}", file), "Invalid regex: Regex too large: its NFA "
+                + "would have more than 100000 states.\n");
+        Assert.assertEquals(request(token, "-B", "1000000000", "test", file), "Usage: [--line-number] [-A NUM] "
+                + "[-B NUM] [-C NUM] [--] REGEX FILE...\n");
+        // Only one character too long, so the server has buffered all of it and the reply isn't lost to a reset
+        char[] regex = new char[65536 - token.length() - "\n\n\n".length() + 1];
+        Arrays.fill(regex, 'a');
+        Assert.assertEquals(request(token, new String(regex)), "Request longer than 65536 characters.\n");
+        Assert.assertEquals(server.getNumCompiled(), 0);
+    }
+
+    @Test
+    public void itSimulatesTheNFAWhenTheDFAIsTooBig() throws IOException {
+        Path file = root.resolve("b.txt");
+        String match = "ba" + String.join("", Collections.nCopies(22, "b"));
+        Files.write(file, Arrays.asList(match, "ab"));
+        Assert.assertEquals(request(token, "(a|b)*a(a|b){22}", file.toString()), match + "\n");
+    }
+
+    @Test
+    public void itOnlySearchesFilesInTheRootsForClientsWithTheToken() throws IOException {
+        String file = root.resolve("a.txt").toString();
+        Assert.assertEquals(request("wrong", "test", file), "Invalid token.\n");
+
+        String secret = root.resolve("../secret.txt").toString();
+        Assert.assertEquals(request(token, "test", secret), "Unable to read file " + secret + ".\n");
+    }
+}